@@ -5,9 +5,12 @@ import java.io.UncheckedIOException;
 
 import java.nio.file.Path;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 public interface Chars {
 
     static CharBuffer chars(char[] array) {
@@ -32,7 +35,17 @@ public interface Chars {
     static CharBuffer chars(Path path) {
         try {
             byte[] bytes = Files.readAllBytes(path);
-            return chars(new String(bytes));
+            return chars(new String(bytes,UTF_8));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Decode a UTF-8 file straight from a mapping of it, without a byte[] copy. */
+    static CharBuffer map(Path path) {
+        try (FileChannel f = FileChannel.open(path)) {
+            return UTF_8.newDecoder().decode(f.map(FileChannel.MapMode.READ_ONLY,0,f.size()));
         }
         catch (IOException e) {
             throw new UncheckedIOException(e);
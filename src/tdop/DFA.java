@@ -0,0 +1,546 @@
+package tdop;
+
+import java.nio.CharBuffer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+import static tdop.TDOP.*;
+
+/**
+ * A table-driven lexer compiled from declarative token rules.
+ *
+ * A rule is a token type and a pattern: literal chars, '.', classes like
+ * [a-z_] or [^"\n], the escapes \d \w \s \n \t, groups, | and * + ?.
+ * Rules are compiled to an NFA, then to a DFA by subset construction, and
+ * the DFA is minimized; chars that no rule tells apart share one column of
+ * the transition table. The scanner takes the longest match, and among
+ * rules matching the same text the one with the highest priority, then
+ * the first one added. Literal words rank above patterns by default, so
+ * keywords beat NAME.
+ *
+ * The token types must be registered in the grammar the lexer is compiled
+ * for, so its tokens can feed Parser.parse(TokenSource).
+ */
+public class DFA {
+
+    public static class Rules {
+        final List<String> types = new ArrayList<>();
+        final List<String> patterns = new ArrayList<>();
+        final List<Integer> priorities = new ArrayList<>();
+        final BitSet literal = new BitSet(), skip = new BitSet();
+
+        /** Words matched as is, each its own token type, e.g. "+", "if". */
+        public Rules literal(String ... words) {
+            for (String w : words) {
+                literal.set(types.size());
+                add(w,w,1);
+            }
+            return this;
+        }
+
+        public Rules rule(String type, String pattern) {
+            return rule(type,pattern,0);
+        }
+
+        public Rules rule(String type, String pattern, int priority) {
+            parse(pattern); // fail early
+            return add(type,pattern,priority);
+        }
+
+        /** Text to match and drop, like white space and comments. */
+        public Rules skip(String pattern) {
+            skip.set(types.size());
+            return rule(null,pattern,0);
+        }
+
+        Rules add(String type, String pattern, int priority) {
+            types.add(type);
+            patterns.add(pattern);
+            priorities.add(priority);
+            return this;
+        }
+
+        /** Compile for the token types of a parser's grammar. */
+        public DFA compile(TDOP.Parser<?> parser) {
+            Parser p = (Parser)parser;
+            return new DFA(this,p.spec.table().lexicon.base,p.lexer.symbols);
+        }
+
+        Expr parse(String pattern) {
+            return new Pattern(pattern).parse();
+        }
+    }
+
+    final int[] kinds;
+    final String[] types;
+    final boolean[] text;
+    final Symbols symbols;
+
+    final char[] column = new char[0x10000]; // char to column
+    final int columns;
+    final int[] next;   // state*columns+column to state; 0 is the dead state
+    final int[] accept; // state to rule, or -1
+    final int start;
+
+    DFA(Rules r, Tokens tokens, Symbols symbols) {
+        int n = r.types.size();
+        this.symbols = symbols;
+        kinds = new int[n];
+        types = new String[n];
+        text = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            String t = r.types.get(i);
+            if (r.skip.get(i)) {
+                kinds[i] = -1;
+                continue;
+            }
+            Integer k = tokens.kinds.get(t);
+            if (k == null) throw new IllegalArgumentException("no token type "+t+" in the grammar");
+            kinds[i] = k;
+            types[i] = tokens.type(k);
+            text[i] = !r.literal.get(i);
+        }
+
+        // Thompson NFA; every rule hangs off state 0
+        NFA nfa = new NFA();
+        for (int i = 0; i < n; i++) {
+            String p = r.patterns.get(i);
+            Expr e = r.literal.get(i) ? Expr.word(p) : r.parse(p);
+            int end = nfa.state();
+            nfa.accept[end] = i;
+            nfa.epsilon(0,e.build(nfa,end));
+        }
+
+        // split the chars into ranges no rule tells apart
+        TreeSet<Integer> cuts = new TreeSet<>();
+        cuts.add(0);
+        for (int[] set : nfa.sets) {
+            for (int j = 0; j < set.length; j += 2) {
+                cuts.add(set[j]);
+                if (set[j+1] < 0xffff) cuts.add(set[j+1]+1);
+            }
+        }
+        int[] lo = new int[cuts.size()];
+        int k = 0;
+        for (int c : cuts) lo[k++] = c;
+
+        // subset construction; each range is one input symbol for now
+        int[] prio = new int[n];
+        for (int i = 0; i < n; i++) prio[i] = r.priorities.get(i);
+        Map<BitSet,Integer> ids = new HashMap<>();
+        List<BitSet> sets = new ArrayList<>();
+        List<int[]> moves = new ArrayList<>();
+        BitSet dead = new BitSet();
+        ids.put(dead,0);
+        sets.add(dead);
+        BitSet s0 = new BitSet();
+        s0.set(0);
+        nfa.closure(s0);
+        ids.put(s0,1);
+        sets.add(s0);
+        for (int d = 0; d < sets.size(); d++) {
+            BitSet s = sets.get(d);
+            int[] row = new int[lo.length];
+            for (int c = 0; c < lo.length && d > 0; c++) {
+                BitSet t = nfa.move(s,lo[c]);
+                Integer id = ids.get(t);
+                if (id == null) {
+                    ids.put(t,id = sets.size());
+                    sets.add(t);
+                }
+                row[c] = id;
+            }
+            moves.add(row);
+        }
+        int m = sets.size();
+        int[] best = new int[m];
+        for (int d = 0; d < m; d++) {
+            best[d] = -1;
+            BitSet s = sets.get(d);
+            for (int q = s.nextSetBit(0); q >= 0; q = s.nextSetBit(q+1)) {
+                int a = nfa.accept[q];
+                if (a >= 0 && (best[d] < 0 || prio[a] > prio[best[d]] || (prio[a] == prio[best[d]] && a < best[d]))) {
+                    best[d] = a;
+                }
+            }
+        }
+
+        // Moore minimization: split blocks by accepted rule, then by successor blocks
+        int[] block = new int[m];
+        Map<List<Integer>,Integer> sig = new HashMap<>();
+        for (int d = 0; d < m; d++) {
+            block[d] = sig.computeIfAbsent(List.of(d == 0 ? -2 : best[d]), x -> sig.size());
+        }
+        for (int blocks = sig.size(), prev = -1; blocks != prev; ) {
+            prev = blocks;
+            sig.clear();
+            int[] b = new int[m];
+            for (int d = 0; d < m; d++) {
+                List<Integer> key = new ArrayList<>(lo.length+1);
+                key.add(block[d]);
+                for (int t : moves.get(d)) key.add(block[t]);
+                b[d] = sig.computeIfAbsent(key, x -> sig.size());
+            }
+            block = b;
+            blocks = sig.size();
+        }
+        int states = sig.size();
+
+        // merge ranges whose columns are the same in the minimal DFA
+        int[][] col = new int[lo.length][states];
+        for (int d = 0; d < m; d++) {
+            for (int c = 0; c < lo.length; c++) col[c][block[d]] = block[moves.get(d)[c]];
+        }
+        Map<List<Integer>,Integer> same = new HashMap<>();
+        int[] merged = new int[lo.length];
+        for (int c = 0; c < lo.length; c++) {
+            List<Integer> key = new ArrayList<>(states);
+            for (int t : col[c]) key.add(t);
+            merged[c] = same.computeIfAbsent(key, x -> same.size());
+        }
+        columns = same.size();
+        for (int c = 0; c < lo.length; c++) {
+            int hi = c+1 < lo.length ? lo[c+1] : 0x10000;
+            Arrays.fill(column,lo[c],hi,(char)merged[c]);
+        }
+
+        next = new int[states*columns];
+        accept = new int[states];
+        for (int d = 0; d < m; d++) {
+            accept[block[d]] = d == 0 ? -1 : best[d];
+            for (int c = 0; c < lo.length; c++) next[block[d]*columns+merged[c]] = col[c][block[d]];
+        }
+        start = block[1];
+    }
+
+    /** The number of states in the minimal DFA, counting the dead state. */
+    public int states() {
+        return accept.length;
+    }
+
+    /** Scan src from its position to its limit; src must have an array. */
+    public TokenSource scan(CharBuffer src) {
+        return new Scanner(src.array(),src.position(),src.limit());
+    }
+
+    class Scanner implements TokenSource {
+        Scanner(char[] src, int pos, int limit) {
+            this.src=src; this.pos=pos; this.limit=limit;
+        }
+
+        final char[] src;
+        final int limit;
+        int pos;
+        Token token;
+
+        @Override
+        public boolean hasNext() {
+            if (token == null) token = scan();
+            return token != null;
+        }
+
+        @Override
+        public Token next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Token t = token;
+            token = null;
+            return t;
+        }
+
+        Token scan() {
+            final char[] a = src;
+            final int[] next = DFA.this.next, accept = DFA.this.accept;
+            final char[] column = DFA.this.column;
+            final int columns = DFA.this.columns;
+            while (pos < limit) {
+                int s = start, rule = -1, end = pos;
+                for (int p = pos; p < limit; ) {
+                    s = next[s*columns+column[a[p++]]];
+                    if (s == 0) break;
+                    if (accept[s] >= 0) {
+                        rule = accept[s];
+                        end = p;
+                    }
+                }
+                int from = pos;
+                if (rule < 0) {
+                    pos++;
+                    return new Token(Tokens.UNRECOGNIZED_KIND,UNRECOGNIZED,0,String.valueOf(a[from]),from);
+                }
+                pos = end;
+                if (kinds[rule] >= 0) return token(rule,from,end);
+            }
+            return null;
+        }
+
+        Token token(int rule, int from, int end) {
+            int kind = kinds[rule];
+            switch (kind) {
+                case Tokens.NAME_KIND:
+                    Symbols.Entry e = symbols.entry(src,from,end-from);
+                    return new Token(kind,types[rule],e.id,e.name,from);
+                case Tokens.STRING_KIND:
+                    boolean escaped = false;
+                    for (int i = from+1; i < end-1 && !escaped; i++) escaped = src[i] == '\\';
+                    return new Literal(src[from],from,src,from+1,end-1,escaped);
+            }
+            return new Token(kind,types[rule],0,text[rule] ? new String(src,from,end-from) : null,from);
+        }
+
+        @Override
+        public Token end() {
+            return new Token(Tokens.EOF_KIND,EOF,0,null,limit);
+        }
+
+        /** The position is the char offset of the next token. */
+        @Override
+        public int position() {
+            return token != null ? token.offset : pos;
+        }
+        @Override
+        public void position(int p) {
+            token = null;
+            pos = p;
+        }
+    }
+
+    /** An NFA under construction; state 0 is the start. */
+    static class NFA {
+        int[] accept = new int[16];
+        int[] target = new int[16];   // the state a char set moves to, or -1
+        final List<int[]> sets = new ArrayList<>();
+        int[] set = new int[16];      // state to index in sets
+        final List<BitSet> epsilon = new ArrayList<>();
+        int size;
+
+        NFA() {
+            state();
+        }
+
+        int state() {
+            if (size == accept.length) {
+                accept = Arrays.copyOf(accept,size*2);
+                target = Arrays.copyOf(target,size*2);
+                set = Arrays.copyOf(set,size*2);
+            }
+            accept[size] = -1;
+            target[size] = -1;
+            epsilon.add(new BitSet());
+            return size++;
+        }
+
+        void epsilon(int from, int to) {
+            epsilon.get(from).set(to);
+        }
+
+        /** A new state that moves on a char in ranges to state to. */
+        int chars(int[] ranges, int to) {
+            int s = state();
+            target[s] = to;
+            set[s] = sets.size();
+            sets.add(ranges);
+            return s;
+        }
+
+        void closure(BitSet s) {
+            int[] stack = new int[size];
+            int n = 0;
+            for (int q = s.nextSetBit(0); q >= 0; q = s.nextSetBit(q+1)) stack[n++] = q;
+            while (n > 0) {
+                BitSet e = epsilon.get(stack[--n]);
+                for (int q = e.nextSetBit(0); q >= 0; q = e.nextSetBit(q+1)) {
+                    if (!s.get(q)) {
+                        s.set(q);
+                        stack[n++] = q;
+                    }
+                }
+            }
+        }
+
+        BitSet move(BitSet s, int c) {
+            BitSet t = new BitSet();
+            for (int q = s.nextSetBit(0); q >= 0; q = s.nextSetBit(q+1)) {
+                if (target[q] >= 0 && has(sets.get(set[q]),c)) t.set(target[q]);
+            }
+            closure(t);
+            return t;
+        }
+
+        static boolean has(int[] ranges, int c) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] <= c && c <= ranges[i+1]) return true;
+            }
+            return false;
+        }
+    }
+
+    /** A pattern AST; build wires it into the NFA ahead of state to and returns its entry. */
+    abstract static class Expr {
+        abstract int build(NFA nfa, int to);
+
+        static Expr chars(int[] ranges) {
+            return new Expr() {
+                @Override
+                int build(NFA nfa, int to) { return nfa.chars(ranges,to); }
+            };
+        }
+        static Expr word(String w) {
+            Expr e = empty();
+            for (int i = 0; i < w.length(); i++) e = seq(e,chars(new int[] { w.charAt(i), w.charAt(i) }));
+            return e;
+        }
+        static Expr empty() {
+            return new Expr() {
+                @Override
+                int build(NFA nfa, int to) { return to; }
+            };
+        }
+        static Expr seq(Expr a, Expr b) {
+            return new Expr() {
+                @Override
+                int build(NFA nfa, int to) { return a.build(nfa,b.build(nfa,to)); }
+            };
+        }
+        static Expr alt(Expr a, Expr b) {
+            return new Expr() {
+                @Override
+                int build(NFA nfa, int to) {
+                    int s = nfa.state();
+                    nfa.epsilon(s,a.build(nfa,to));
+                    nfa.epsilon(s,b.build(nfa,to));
+                    return s;
+                }
+            };
+        }
+        /** a* if many, a? if not; a+ is a a*. */
+        static Expr repeat(Expr a, boolean many) {
+            return new Expr() {
+                @Override
+                int build(NFA nfa, int to) {
+                    int s = nfa.state();
+                    nfa.epsilon(s,to);
+                    nfa.epsilon(s,a.build(nfa,many ? s : to));
+                    return s;
+                }
+            };
+        }
+    }
+
+    static final int[] DIGIT = { '0','9' };
+    static final int[] WORD = { '0','9', 'A','Z', '_','_', 'a','z' };
+    static final int[] SPACE = { '\t','\n', '\f','\r', ' ',' ' };
+    static final int[] DOT = { 0,'\n'-1, '\n'+1,0xffff };
+
+    /** A recursive descent parser for the pattern syntax. */
+    static class Pattern {
+        Pattern(String p) { this.p = p; }
+        final String p;
+        int i;
+
+        Expr parse() {
+            Expr e = alt();
+            if (i < p.length()) throw error("unexpected )");
+            return e;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message+" at "+i+" in pattern "+p);
+        }
+
+        Expr alt() {
+            Expr e = seq();
+            while (i < p.length() && p.charAt(i) == '|') {
+                i++;
+                e = Expr.alt(e,seq());
+            }
+            return e;
+        }
+
+        Expr seq() {
+            Expr e = Expr.empty();
+            while (i < p.length() && p.charAt(i) != '|' && p.charAt(i) != ')') {
+                Expr a = atom();
+                for (; i < p.length(); i++) {
+                    char c = p.charAt(i);
+                    if (c == '*') a = Expr.repeat(a,true);
+                    else if (c == '+') a = Expr.seq(a,Expr.repeat(a,true));
+                    else if (c == '?') a = Expr.repeat(a,false);
+                    else break;
+                }
+                e = Expr.seq(e,a);
+            }
+            return e;
+        }
+
+        Expr atom() {
+            char c = p.charAt(i++);
+            switch (c) {
+                case '(':
+                    Expr e = alt();
+                    if (i >= p.length()) throw error("missing )");
+                    i++;
+                    return e;
+                case '[': return Expr.chars(set());
+                case '.': return Expr.chars(DOT);
+                case '\\': return Expr.chars(escape());
+                case '*': case '+': case '?': throw error("nothing to repeat");
+            }
+            return Expr.chars(new int[] { c, c });
+        }
+
+        int[] escape() {
+            if (i >= p.length()) throw error("trailing \\");
+            char c = p.charAt(i++);
+            switch (c) {
+                case 'd': return DIGIT;
+                case 'w': return WORD;
+                case 's': return SPACE;
+                case 'n': c = '\n'; break;
+                case 't': c = '\t'; break;
+                case 'r': c = '\r'; break;
+                case 'f': c = '\f'; break;
+            }
+            return new int[] { c, c };
+        }
+
+        int[] set() {
+            boolean negate = i < p.length() && p.charAt(i) == '^';
+            if (negate) i++;
+            BitSet b = new BitSet(0x10000);
+            for (boolean first = true; ; first = false) {
+                if (i >= p.length()) throw error("missing ]");
+                char c = p.charAt(i);
+                if (c == ']' && !first) break;
+                i++;
+                int[] r = c == '\\' ? escape() : new int[] { c, c };
+                if (r.length == 2 && r[0] == r[1] && i+1 < p.length() && p.charAt(i) == '-' && p.charAt(i+1) != ']') {
+                    i++;
+                    char h = p.charAt(i++);
+                    int[] hi = h == '\\' ? escape() : new int[] { h, h };
+                    if (hi.length != 2 || hi[0] != hi[1] || hi[0] < r[0]) throw error("bad range");
+                    r = new int[] { r[0], hi[0] };
+                }
+                for (int j = 0; j < r.length; j += 2) b.set(r[j],r[j+1]+1);
+            }
+            i++;
+            if (negate) b.flip(0,0x10000);
+            int[] ranges = new int[0];
+            for (int lo = b.nextSetBit(0); lo >= 0 && lo < 0x10000; ) {
+                int hi = b.nextClearBit(lo);
+                ranges = Arrays.copyOf(ranges,ranges.length+2);
+                ranges[ranges.length-2] = lo;
+                ranges[ranges.length-1] = hi-1;
+                lo = b.nextSetBit(hi);
+            }
+            return ranges;
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package tdop;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static tdop.TDOP.*;
+
+/**
+ * Push-mode parsing: input is fed in chunks as it arrives, and each
+ * complete top-level expression is handed to a callback; nothing blocks.
+ *
+ * Expressions end at a delimiter char outside brackets, strings and
+ * comments, or at finish(). A char-level scanner carries its state across
+ * chunks, so a chunk may end anywhere, even inside a string, a comment or
+ * a UTF-8 sequence. An expression that stops short at a delimiter, like
+ * "1 +" before a newline, is kept and continued after it when the
+ * delimiter is white space; otherwise it is reported as an error.
+ * Once it has stopped short, it is parsed again only at delimiters where
+ * it could be complete: outside brackets, and after a name, a number, a
+ * string or a closing bracket, not after an operator like the "+" of
+ * "1 +"; so a run of continued lines is parsed once, not once per line.
+ * Quotes and comments are those of the Tokenizer's default mode.
+ */
+public class Feeder<N extends Node> {
+
+    static final int CODE = 0, SLASH = 1, LINE = 2, BLOCK = 3, STAR = 4, QUOTE = 5, ESCAPE = 6;
+
+    final TDOP.Parser<N> parser;
+    final char delimiter;
+    final Consumer<N> emit;
+    final Consumer<RuntimeException> error;
+    final CharsetDecoder decoder = UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    char[] buf = new char[256];
+    int size, start, scanned; // buf[start,size) is pending, [start,scanned) is scanned
+    ByteBuffer bytes = ByteBuffer.allocate(64);
+
+    int state, quote, depth;
+    int last;        // the last char of code, outside space and comments
+    boolean code;    // the pending text has more than space and comments
+    boolean stopped; // and it stopped short at a delimiter before
+
+    /**
+     * Parse with parser, calling emit with each tree and error with each
+     * ParseError; if error is null, errors are thrown from feed.
+     */
+    public Feeder(TDOP.Parser<N> parser, char delimiter, Consumer<N> emit, Consumer<RuntimeException> error) {
+        this.parser = parser;
+        this.delimiter = delimiter;
+        this.emit = emit;
+        this.error = error;
+    }
+
+    public Feeder<N> feed(CharBuffer chunk) {
+        int n = chunk.remaining();
+        if (size+n > buf.length) {
+            if (start > 0) {
+                System.arraycopy(buf,start,buf,0,size-start);
+                size -= start; scanned -= start; start = 0;
+            }
+            if (size+n > buf.length) buf = Arrays.copyOf(buf,Math.max(buf.length*2,size+n));
+        }
+        chunk.get(buf,size,n);
+        size += n;
+        scan();
+        return this;
+    }
+
+    /** Feed UTF-8 bytes; a sequence split across chunks is decoded whole. */
+    public Feeder<N> feed(ByteBuffer chunk) {
+        if (bytes.remaining() < chunk.remaining()) {
+            ByteBuffer b = ByteBuffer.allocate(Math.max(bytes.capacity()*2,bytes.position()+chunk.remaining()));
+            bytes.flip();
+            bytes = b.put(bytes);
+        }
+        bytes.put(chunk);
+        return decode(false);
+    }
+
+    Feeder<N> decode(boolean end) {
+        bytes.flip();
+        CharBuffer out = CharBuffer.allocate(bytes.remaining()+1);
+        decoder.decode(bytes,out,end);
+        if (end) decoder.flush(out);
+        bytes.compact();
+        return feed(out.flip());
+    }
+
+    /** End of input: parse whatever is pending, complete or not. */
+    public void finish() {
+        decode(true);
+        decoder.reset();
+        if (code || state == SLASH) parse(size,size,true);
+        start = scanned = size = 0;
+        state = depth = last = 0;
+        code = stopped = false;
+    }
+
+    /** Run the scanner over the new chars, parsing at each top-level delimiter. */
+    void scan() {
+        final char[] a = buf;
+        for (int i = scanned; i < size; i++) {
+            char c = a[i];
+            switch (state) {
+                case SLASH:
+                    if (c == '/') { state = LINE; continue; }
+                    if (c == '*') { state = BLOCK; continue; }
+                    state = CODE;
+                    code = true;
+                    last = '/';
+                    break;
+                case LINE:
+                    if (c == '\n') { state = CODE; break; }
+                    continue;
+                case BLOCK:
+                    if (c == '*') state = STAR;
+                    continue;
+                case STAR:
+                    state = c == '/' ? CODE : c == '*' ? STAR : BLOCK;
+                    continue;
+                case QUOTE:
+                    if (c == quote || c == '\n') { state = CODE; last = quote; }
+                    else if (c == '\\') state = ESCAPE;
+                    if (c != '\n') continue;
+                    break;
+                case ESCAPE:
+                    state = QUOTE;
+                    continue;
+            }
+            // state is CODE
+            if (c == delimiter && depth == 0) {
+                scanned = i+1;
+                if (!code) start = scanned;
+                else if (delimiter > ' ' || !stopped || operand(last)) parse(i,scanned,delimiter > ' ');
+                continue;
+            }
+            switch (c) {
+                case '/': state = SLASH; continue;
+                case '"': case '\'': case '`': state = QUOTE; quote = c; break;
+                case '(': case '[': case '{': depth++; break;
+                case ')': case ']': case '}': if (depth > 0) depth--; break;
+                default: if (c <= ' ') continue;
+            }
+            code = true;
+            last = c;
+        }
+        scanned = size;
+    }
+
+    /** Test if c can end an operand, so an expression may end after it. */
+    static boolean operand(int c) {
+        return Character.isJavaIdentifierPart(c) || c == ')' || c == ']' || c == '}'
+            || c == '"' || c == '\'' || c == '`';
+    }
+
+    /**
+     * Parse buf[start,end) and emit the tree, then start the next expression
+     * at next; unless it stops short and more input may finish it.
+     */
+    void parse(int end, int next, boolean last) {
+        CharBuffer src = CharBuffer.wrap(Arrays.copyOfRange(buf,start,end));
+        try {
+            if (last) {
+                emit.accept(parser.parse(src));
+            } else {
+                N tree = parser.complete(src).tree;
+                if (tree == null) {
+                    stopped = true;
+                    return;
+                }
+                emit.accept(tree);
+            }
+        }
+        catch (RuntimeException e) {
+            if (error == null) {
+                start = next;
+                code = stopped = false;
+                throw e;
+            }
+            error.accept(e);
+        }
+        start = next;
+        code = stopped = false;
+    }
+
+}
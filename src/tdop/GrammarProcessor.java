@@ -0,0 +1,205 @@
+package tdop;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.LinkedHashSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+import static javax.tools.Diagnostic.Kind.ERROR;
+import static tdop.TDOP.*;
+
+/**
+ * Compiles the grammar declared by the Nud and Led methods of a class
+ * into Java source, with javac -processor tdop.GrammarProcessor.
+ *
+ * For a class G whose handlers return N, it writes GGrammar, next to G,
+ * with install(Spec<N>, G) to register them all as one version. The
+ * handlers are instances of GGrammar that call their method through a
+ * switch, so a grammar loads one class instead of bootstrapping a
+ * lambda per handler, about a millisecond each on a cold JVM.
+ *
+ * That is all it saves: install replays the Spec calls the grammar would
+ * make by hand, and the Spec still lexes the token names and freezes its
+ * lookup tables at run time, which is cheap next to class loading. It
+ * emits no precomputed tables.
+ */
+@SupportedAnnotationTypes({ "tdop.TDOP.Nud", "tdop.TDOP.Led" })
+public class GrammarProcessor extends AbstractProcessor {
+
+    static class Handler {
+        Handler(ExecutableElement m, Nud n, Led l) {
+            method=m; nud=n; led=l;
+        }
+        final ExecutableElement method;
+        final Nud nud;
+        final Led led;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        Set<Element> grammars = new LinkedHashSet<>();
+        for (Element e : round.getElementsAnnotatedWith(Nud.class)) grammars.add(e.getEnclosingElement());
+        for (Element e : round.getElementsAnnotatedWith(Led.class)) grammars.add(e.getEnclosingElement());
+        for (Element g : grammars) {
+            generate((TypeElement)g);
+        }
+        return true;
+    }
+
+    void generate(TypeElement g) {
+        if (g.getKind() != ElementKind.CLASS || !g.getTypeParameters().isEmpty()
+            || g.getNestingKind() != NestingKind.TOP_LEVEL && !g.getModifiers().contains(Modifier.STATIC)) {
+            error(g, "a grammar must be a class without type parameters, top-level or static");
+            return;
+        }
+        // in declaration order, as the Spec calls would be
+        List<Handler> handlers = new ArrayList<>();
+        TypeMirror node = null;
+        for (Element e : g.getEnclosedElements()) {
+            Nud n = e.getAnnotation(Nud.class);
+            Led l = e.getAnnotation(Led.class);
+            if (n == null && l == null) continue;
+            ExecutableElement m = (ExecutableElement)e;
+            if (n != null && l != null) {
+                error(m, "a method can't be both a nud and a led");
+                return;
+            }
+            if (m.getModifiers().contains(Modifier.PRIVATE)) {
+                error(m, "a handler can't be private");
+                return;
+            }
+            int arity = n != null ? 3 : 4;
+            if (m.getParameters().size() != arity
+                || m.getParameters().get(arity-1).asType().getKind() != TypeKind.INT) {
+                error(m, n != null ? "a nud takes (Parser<N>, Token, int)" : "a led takes (Parser<N>, Token, N, int)");
+                return;
+            }
+            TypeMirror r = m.getReturnType();
+            if (node == null) {
+                node = r;
+            } else if (!processingEnv.getTypeUtils().isSameType(node,r)) {
+                error(m, "all handlers must return "+node);
+                return;
+            }
+            handlers.add(new Handler(m,n,l));
+        }
+        String pkg = ((PackageElement)outermost(g).getEnclosingElement()).getQualifiedName().toString();
+        String grammar = g.getQualifiedName().toString();
+        String name = (pkg.isEmpty() ? grammar : grammar.substring(pkg.length()+1)).replace('.','_') + "Grammar";
+        try (Writer w = processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? name : pkg+"."+name, g).openWriter()) {
+            w.write(source(pkg, name, grammar, g.getModifiers().contains(Modifier.PUBLIC), node.toString(), handlers));
+        }
+        catch (IOException e) {
+            error(g, "can't write "+name+": "+e);
+        }
+    }
+
+    static Element outermost(Element e) {
+        while (e.getEnclosingElement().getKind() != ElementKind.PACKAGE) e = e.getEnclosingElement();
+        return e;
+    }
+
+    static String source(String pkg, String name, String g, boolean pub, String n, List<Handler> handlers) {
+        StringBuilder s = new StringBuilder();
+        if (!pkg.isEmpty()) s.append("package ").append(pkg).append(";\n\n");
+        s.append("import tdop.TDOP;\n\n");
+        s.append("/**\n * The grammar of ").append(g).append(", one class for all its handlers.\n");
+        s.append(" * Generated by tdop.GrammarProcessor; do not edit.\n */\n");
+        s.append(pub ? "public " : "").append("class ").append(name)
+         .append(" implements TDOP.NUD<").append(n).append(">, TDOP.LED<").append(n)
+         .append(">, java.util.function.Consumer<TDOP.Spec<").append(n).append(">> {\n\n");
+
+        s.append("    /** Register the handlers of g with spec, as one version. */\n");
+        s.append("    ").append(pub ? "public " : "").append("static TDOP.Spec<").append(n).append("> install(TDOP.Spec<")
+         .append(n).append("> spec, ").append(g).append(" g) {\n");
+        s.append("        return spec.update(new ").append(name).append("(g,-1));\n    }\n\n");
+
+        s.append("    final ").append(g).append(" g;\n    final int id;\n\n");
+        s.append("    ").append(name).append("(").append(g).append(" g, int id) {\n");
+        s.append("        this.g = g;\n        this.id = id;\n    }\n\n");
+
+        s.append("    @Override\n    public void accept(TDOP.Spec<").append(n).append("> s) {\n");
+        boolean rejecting = false;
+        for (int i = 0; i < handlers.size(); i++) {
+            Handler h = handlers.get(i);
+            boolean r = h.nud != null ? h.nud.rejecting() : h.led.rejecting();
+            rejecting |= r;
+            s.append("        s.").append(h.nud != null ? "Null" : h.led.right() ? "Right" : "Left")
+             .append("(").append(h.nud != null ? h.nud.bp() : h.led.bp())
+             .append(", new ").append(r ? "Rejects" : name).append("(g,").append(i).append(")");
+            for (String t : h.nud != null ? h.nud.value() : h.led.value()) {
+                s.append(", ").append(literal(t));
+            }
+            s.append(");\n");
+        }
+        s.append("    }\n\n");
+
+        s.append("    @Override\n    public ").append(n).append(" nud(TDOP.Parser<").append(n)
+         .append("> p, TDOP.Token t, int bp) {\n");
+        s.append("        switch (id) {\n");
+        for (int i = 0; i < handlers.size(); i++) {
+            Handler h = handlers.get(i);
+            if (h.nud != null) s.append("            case ").append(i).append(": return ").append(call(g,h.method)).append("(p,t,bp);\n");
+        }
+        s.append("        }\n        throw new IllegalStateException(\"no nud \"+id);\n    }\n\n");
+
+        s.append("    @Override\n    public ").append(n).append(" led(TDOP.Parser<").append(n)
+         .append("> p, TDOP.Token t, ").append(n).append(" left, int rbp) {\n");
+        s.append("        switch (id) {\n");
+        for (int i = 0; i < handlers.size(); i++) {
+            Handler h = handlers.get(i);
+            if (h.led != null) s.append("            case ").append(i).append(": return ").append(call(g,h.method)).append("(p,t,left,rbp);\n");
+        }
+        s.append("        }\n        throw new IllegalStateException(\"no led \"+id);\n    }\n");
+
+        if (rejecting) {
+            s.append("\n    static class Rejects extends ").append(name).append(" implements TDOP.Rejecting {\n");
+            s.append("        Rejects(").append(g).append(" g, int id) {\n            super(g,id);\n        }\n    }\n");
+        }
+        s.append("\n}\n");
+        return s.toString();
+    }
+
+    static String call(String g, ExecutableElement m) {
+        return (m.getModifiers().contains(Modifier.STATIC) ? g : "g") + "." + m.getSimpleName();
+    }
+
+    /** A Java string literal for s. */
+    static String literal(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') b.append('\\').append(c);
+            else if (c >= ' ' && c < 0x7f) b.append(c);
+            else b.append(String.format("\\u%04X",(int)c));
+        }
+        return b.append('"').toString();
+    }
+
+    void error(Element e, String message) {
+        processingEnv.getMessager().printMessage(ERROR, message, e);
+    }
+
+}
@@ -0,0 +1,80 @@
+package tdop;
+
+import java.nio.CharBuffer;
+
+import static tdop.TDOP.*;
+
+/**
+ * A STRING token whose value is a view over the source buffer.
+ * The value is unescaped on first use, and only if the lexer
+ * saw a backslash; otherwise it is the unquoted slice as is.
+ * Nothing is copied for the quoted text either until text() is called.
+ */
+class Literal extends Token {
+
+    Literal(int quote, int offset, char[] src, int start, int end, boolean escaped) {
+        super(Tokens.STRING_KIND,STRING,quote,null,offset);
+        this.src=src; this.start=start; this.end=end; this.escaped=escaped;
+    }
+
+    final char[] src;
+    final int start, end;
+    final boolean escaped;
+
+    CharSequence value;
+    String quoted;
+
+    @Override
+    public String text() {
+        if (quoted == null) {
+            quoted = new String(src,start-1,end-start+2);
+        }
+        return quoted;
+    }
+
+    @Override
+    public CharSequence value() {
+        if (value == null) {
+            value = escaped ? unescape(src,start,end) : CharBuffer.wrap(src,start,end-start).slice();
+        }
+        return value;
+    }
+
+    static String unescape(char[] a, int i, int end) {
+        StringBuilder b = new StringBuilder(end-i);
+        while (i < end) {
+            char c = a[i++];
+            if (c == '\\' && i < end) {
+                switch (c = a[i++]) {
+                    case 'b': c = '\b'; break;
+                    case 't': c = '\t'; break;
+                    case 'n': c = '\n'; break;
+                    case 'f': c = '\f'; break;
+                    case 'r': c = '\r'; break;
+                    case 's': c = ' '; break;
+                    case '0': c = '\0'; break;
+                    case 'u': {
+                        int u = hex(a,i,end);
+                        if (u < 0) break;
+                        c = (char)u; i += 4;
+                        break;
+                    }
+                }
+            }
+            b.append(c);
+        }
+        return b.toString();
+    }
+
+    static int hex(char[] a, int i, int end) {
+        if (i+4 > end) return -1;
+        int u = 0;
+        for (int j = i; j < i+4; j++) {
+            int d = Character.digit(a[j],16);
+            if (d < 0) return -1;
+            u = (u << 4) | d;
+        }
+        return u;
+    }
+
+}
@@ -1,7 +1,18 @@
 package tdop;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.LinkedHashSet;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+import java.io.InputStream;
 
 import java.nio.CharBuffer;
 
@@ -9,6 +20,12 @@ import static tdop.TDOP.*;
 
 public class Parser implements TDOP.Parser {
 
+    /**
+     * The handlers and tokens registered so far. Changes are made under the
+     * Spec's lock and published as a new version, frozen into an immutable
+     * Table on first use, so parses read the current version without
+     * locking and finish on the one they began.
+     */
     class Spec implements TDOP.Spec {
 
         Map<String,NullInfo> nullLookup = new HashMap<>();
@@ -29,8 +46,93 @@ public class Parser implements TDOP.Parser {
             final int bp;
         }
 
+        /**
+         * One version of the grammar: the lookup tables frozen into arrays
+         * indexed by Token.kind, and the lexer tables they go with.
+         */
+        class Table {
+            Table(int version) {
+                this.version = version;
+                lexicon = new Tokenizer.Lexicon(lexer);
+                Map<String,Integer> kinds = lexicon.base.kinds;
+                int n = kinds.size();
+                nud = new NUD[n]; nbp = new int[n];
+                led = new LED[n]; lbp = new int[n]; rbp = new int[n];
+                nullLookup.forEach((k,v) -> {
+                    int i = kinds.get(k);
+                    nud[i] = v.fn; nbp[i] = v.bp;
+                });
+                leftLookup.forEach((k,v) -> {
+                    int i = kinds.get(k);
+                    led[i] = v.fn; lbp[i] = v.lbp; rbp[i] = v.rbp;
+                });
+                prefixes = new BitSet(n);
+                for (int i = 0; i < n; i++) {
+                    if (nud[i] != null && !(nud[i] instanceof Rejecting)) prefixes.set(i);
+                }
+                prefixes.clear(Tokens.EOF_KIND);
+            }
+            final int version;
+            final Tokenizer.Lexicon lexicon;
+            final NUD[] nud;
+            final LED[] led;
+            final int[] nbp, lbp, rbp;
+            final BitSet prefixes; // kinds that can start an operand
+
+            Spec spec() {
+                return Spec.this;
+            }
+
+            /** Add the kinds that can continue an operand parsed with rbp. */
+            void continuations(int rbp, BitSet kinds) {
+                for (int i = 0; i < led.length; i++) {
+                    if (lbp[i] > rbp && led[i] != null && !(led[i] instanceof Rejecting)) kinds.set(i);
+                }
+            }
+        }
+
+        // a change only counts a version; the Table for it is built when a
+        // parse or lex first asks for it, so registering n tokens one call
+        // at a time builds one Table, not n
+        volatile Table table = new Table(0);
+        volatile int version;
+        int batch; // nesting of update()
+
+        Table table() {
+            Table t = table;
+            return t.version == version ? t : freeze();
+        }
+
+        synchronized Table freeze() {
+            if (table.version != version) table = new Table(version);
+            return table;
+        }
+
+        void publish() {
+            if (batch == 0) version++;
+        }
+
+        @Override
+        @SuppressWarnings({"rawtypes","unchecked"}) // overrides a generic method of the raw Spec
+        public synchronized Spec update(Consumer changes) {
+            batch++;
+            try {
+                changes.accept(this);
+            }
+            finally {
+                batch--;
+            }
+            publish();
+            return this;
+        }
+
         @Override
-        public Spec Null(int bp, NUD nud, String... tokens) {
+        public int version() {
+            return version;
+        }
+
+        @Override
+        public synchronized Spec Null(int bp, NUD nud, String... tokens) {
             if (nud == null) nud = NullError;
             for (String key : tokens) {
                 nullLookup.put(key, new NullInfo(nud,bp));
@@ -39,10 +141,11 @@ public class Parser implements TDOP.Parser {
                 }
                 lexer.word(key);
             }
+            publish();
             return this;
         }
 
-        private Spec Left(int lbp, int rbp, LED led, String... tokens) {
+        private synchronized Spec Left(int lbp, int rbp, LED led, String... tokens) {
             if (led == null) led = LeftError;
             for (String key : tokens) {
                 if (!nullLookup.containsKey(key)) {
@@ -51,6 +154,15 @@ public class Parser implements TDOP.Parser {
                 leftLookup.put(key, new LeftInfo(led,lbp,rbp));
                 lexer.word(key);
             }
+            publish();
+            return this;
+        }
+
+        @Override
+        public synchronized Spec mode(String name, int scan, String... tokens) {
+            Tokens mode = lexer.mode(name,scan);
+            mode.word(tokens);
+            publish();
             return this;
         }
 
@@ -63,28 +175,10 @@ public class Parser implements TDOP.Parser {
             return Left(bp,bp-1,led,tokens);
         }
 
-        /** Get the parsing function and precedence for a null position token. */
-        NullInfo lookupNull(String key) {
-            NullInfo nud = nullLookup.get(key);
-            if (nud == null) {
-                throw new ParseError("Unexpected token "+type(key));
-            }
-            return nud;
-        }
-
-        /** Get the parsing function and precedence for a left position token. */
-        LeftInfo lookupLeft(String key) {
-            LeftInfo led = leftLookup.get(key);
-            if (led == null) {
-                throw new ParseError("Unexpected token "+type(key));
-            }
-            return led;
-        }
-
-        NUD NullError = (p,t,b) -> {
+        NUD NullError = (NUD & Rejecting)(p,t,b) -> {
             throw new ParseError(str(t)+" can't be used in prefix position");
         };
-        LED LeftError = (p,t,n,b) -> {
+        LED LeftError = (LED & Rejecting)(p,t,n,b) -> {
             throw new ParseError(str(t)+" can't be used in infix position");
         };
     }  // Spec
@@ -93,9 +187,81 @@ public class Parser implements TDOP.Parser {
         public ParseError(String msg) { super(msg); }
     }
 
-    Spec spec = new Spec();
+    /**
+     * A parse ran over one of its Limits or was cancelled. It is not a
+     * ParseError, so a handler that backtracks on ParseError can't swallow
+     * it, and it is never memoized.
+     */
+    public static class LimitError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LimitError(Limits.Exceeded e, int o, int t, int d) {
+            super("parse "+(e == Limits.Exceeded.CANCELLED ? "cancelled" : "exceeded its "+e+" limit")+" at offset "+o);
+            exceeded=e; offset=o; tokens=t; depth=d;
+        }
+        public final Limits.Exceeded exceeded;
+        public final int offset; // of the current token
+        public final int tokens; // read so far
+        public final int depth;  // of parseUntil calls
+    }
+
+    /** The end of input during complete(); collects the pending handlers. */
+    static class Incomplete extends ParseError {
+        private static final long serialVersionUID = 1L;
+
+        Incomplete() { super("Unexpected end of input"); }
+
+        final List<Token> pending = new ArrayList<>();
+        final List<Node> operands = new ArrayList<>();
+
+        Incomplete open(Token t, Node left) {
+            pending.add(t);
+            operands.add(left);
+            return this;
+        }
+
+        @Override
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
     Tokenizer lexer = new Tokenizer();
+    Spec spec = new Spec();
+    TokenSource tokens = lexer;
+    Spec.Table table; // the grammar version of the current parse
     Token token;
+    int from; // where the lexer started the scan for token
+
+    // lookahead ring; ahead[head] is the token after the current token
+    Token[] ahead = new Token[LOOKAHEAD];
+    int[] froms = new int[LOOKAHEAD];
+    int head, count;
+
+    public static final int LOOKAHEAD = 4;
+
+    // scratch stack for open/push/close
+    Node[] stack = new Node[16];
+    int top;
+
+    // parseUntil results by (token offset, rbp), if memoizing
+    Map<Long,Memo> memo;
+
+    // the budgets of the current parse, and what it has spent
+    Limits limits;
+    int spent, depth;
+    long deadline;
+
+    // during complete(), the kinds that could follow the input,
+    // and the last operand that ended with it
+    BitSet expected;
+    Node last;
+
+    public Parser() {}
+
+    public Parser(Symbols symbols) {
+        lexer.symbols(symbols);
+    }
 
     @Override
     public TDOP.Spec spec() {
@@ -104,18 +270,204 @@ public class Parser implements TDOP.Parser {
 
     @Override
     public boolean atToken(String tokenType) {
-        return token.type.equals(tokenType);
+        if (token.type.equals(tokenType)) return true;
+        if (expected != null && token.kind == Tokens.EOF_KIND) probe(tokenType);
+        return false;
+    }
+
+    /** During complete(), note a type that a handler looked for at the end. */
+    void probe(String type) {
+        Integer k = table.lexicon.base.kinds.get(type);
+        if (k != null) expected.set(k);
     }
 
     @Override
     public void nextToken() {
-        token = lexer.hasNext() ? lexer.next() : new Token(EOF,0,null);
+        if (count > 0) {
+            token = ahead[head];
+            from = froms[head];
+            head = (head+1) & (LOOKAHEAD-1);
+            count--;
+        } else {
+            from = tokens.position();
+            token = lex();
+        }
+        if (limits != null) budget();
+    }
+
+    void budget() {
+        Limits l = limits;
+        if (++spent > l.tokens) exceed(Limits.Exceeded.TOKENS);
+        if (token.offset > l.length) exceed(Limits.Exceeded.LENGTH);
+        if ((spent & 63) == 0) {
+            if (l.cancelled) exceed(Limits.Exceeded.CANCELLED);
+            if (l.nanos != Long.MAX_VALUE && System.nanoTime() - deadline > 0) exceed(Limits.Exceeded.DEADLINE);
+        }
+    }
+
+    void exceed(Limits.Exceeded e) {
+        throw new LimitError(e, token == null ? 0 : token.offset, spent, depth);
+    }
+
+    @Override
+    public void limit(Limits limits) {
+        this.limits = limits;
+    }
+
+    @Override
+    public Token peek(int n) {
+        if (n == 0) return token;
+        if (n < 0 || n > LOOKAHEAD) {
+            throw new IllegalArgumentException("peek("+n+") is beyond the lookahead of "+LOOKAHEAD);
+        }
+        for (; count < n; count++) {
+            int i = (head+count) & (LOOKAHEAD-1);
+            froms[i] = tokens.position();
+            ahead[i] = lex();
+        }
+        return ahead[(head+n-1) & (LOOKAHEAD-1)];
+    }
+
+    Token lex() {
+        return tokens.hasNext() ? tokens.next() : tokens.end();
+    }
+
+    @Override
+    public void pushMode(String name) {
+        modal();
+        lexer.pushMode(name);
+        relex();
+    }
+
+    @Override
+    public void popMode() {
+        modal();
+        lexer.popMode();
+        relex();
+    }
+
+    void modal() {
+        if (tokens != lexer) {
+            throw new UnsupportedOperationException("lexer modes need the Parser's own Tokenizer");
+        }
+    }
+
+    void relex() {
+        tokens.position(from);
+        head = count = 0;
+        nextToken();
+    }
+
+    static class Position implements Mark {
+        Position(Token t, int f, Token[] a, int[] s, int p, Tokenizer.Modes m, int n) {
+            token=t; from=f; ahead=a; froms=s; position=p; modes=m; top=n;
+        }
+        final Token token;
+        final int from;
+        final Token[] ahead;
+        final int[] froms;
+        final int position;
+        final Tokenizer.Modes modes;
+        final int top;
+    }
+
+    static final Token[] NONE = {};
+    static final int[] NO_FROMS = {};
+
+    @Override
+    public Mark mark() {
+        return mark(top);
+    }
+
+    /** A mark that restores the scratch stack to top, or leaves it alone if top < 0. */
+    Position mark(int top) {
+        Token[] a = count == 0 ? NONE : new Token[count];
+        int[] s = count == 0 ? NO_FROMS : new int[count];
+        for (int i = 0; i < count; i++) {
+            a[i] = ahead[(head+i) & (LOOKAHEAD-1)];
+            s[i] = froms[(head+i) & (LOOKAHEAD-1)];
+        }
+        return new Position(token,from,a,s,tokens.position(),lexer.stack,top);
+    }
+
+    @Override
+    public void reset(Mark mark) {
+        Position m = (Position)mark;
+        token = m.token;
+        from = m.from;
+        System.arraycopy(m.ahead,0,ahead,0,m.ahead.length);
+        System.arraycopy(m.froms,0,froms,0,m.froms.length);
+        head = 0;
+        count = m.ahead.length;
+        tokens.position(m.position);
+        lexer.modes(m.modes);
+        if (m.top >= 0 && top > m.top) drop(m.top);
+    }
+
+    @Override
+    public void memoize(boolean flag) {
+        memo = flag ? new HashMap<>() : null;
+    }
+
+    static class Memo {
+        Memo(Node n, ParseError e, Mark m) {
+            node=n; error=e; end=m;
+        }
+        final Node node;
+        final ParseError error;
+        final Mark end; // of the tokens only; the scratch stack belongs to the caller
+    }
+
+    @Override
+    public int open() {
+        return top;
+    }
+
+    @Override
+    public void push(Node node) {
+        if (top == stack.length) {
+            stack = Arrays.copyOf(stack,top*2);
+        }
+        stack[top++] = node;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // overrides a generic method of the raw Parser
+    public Node[] close(int mark, IntFunction array) {
+        Node[] a = (Node[])array.apply(top-mark);
+        System.arraycopy(stack,mark,a,0,a.length);
+        drop(mark);
+        return a;
+    }
+
+    void drop(int mark) {
+        Arrays.fill(stack,mark,top,null);
+        top = mark;
+    }
+
+    @Override
+    public TokenSource skipGroup() {
+        if (!(tokens instanceof TokenTable) || ((TokenTable)tokens).match == null) {
+            return null;
+        }
+        TokenTable t = (TokenTable)tokens;
+        int close = from > 0 ? t.match(from-1) : -1; // from is the current token's entry
+        if (close < from) {
+            throw new ParseError("skipGroup: no open bracket before "+str(token));
+        }
+        TokenTable group = new TokenTable(t,from,close);
+        t.position(close);
+        head = count = 0;
+        nextToken();
+        return group;
     }
 
     @Override
     public void expect(String val) { // eat()
         if (atToken(val)) {
             nextToken();
+        } else if (expected != null && token.kind == Tokens.EOF_KIND) {
+            throw new Incomplete();
         } else {
             throw new ParseError("expected "+val+", got "+str(token));
         }
@@ -123,36 +475,189 @@ public class Parser implements TDOP.Parser {
 
     @Override
     public Node parseUntil(int rbp) {
-        if (atToken(EOF)) {
+        if (memo == null) {
+            return until(rbp);
+        }
+        Long key = ((long)token.offset << 32) | (rbp & 0x0ffffffffL);
+        Memo m = memo.get(key);
+        if (m == null) {
+            try {
+                Node node = until(rbp);
+                memo.put(key,new Memo(node,null,mark(-1)));
+                return node;
+            }
+            catch (ParseError e) {
+                memo.put(key,new Memo(null,e,mark(-1)));
+                throw e;
+            }
+        }
+        reset(m.end);
+        if (m.error != null) throw m.error;
+        return m.node;
+    }
+
+    Node until(int rbp) {
+        if (limits != null && depth >= limits.depth) exceed(Limits.Exceeded.DEPTH);
+        depth++;
+        try {
+            return climb(rbp);
+        }
+        finally {
+            depth--;
+        }
+    }
+
+    @SuppressWarnings({"rawtypes","unchecked"}) // the tables hold the handlers of a raw Spec
+    Node climb(int rbp) {
+        Spec.Table tab = table;
+        if (token.kind == Tokens.EOF_KIND) {
+            if (expected != null) {
+                expected.or(tab.prefixes);
+                throw new Incomplete();
+            }
             throw new ParseError("Unexpected end of input");
         }
 
         Token t = token;
         nextToken(); // skip over the token, e.g. ! ~ + -
 
-        Spec.NullInfo nullInfo = spec.lookupNull(t.type);
-        Node node = nullInfo.fn.nud(this,t,nullInfo.bp);
+        NUD nud = tab.nud[t.kind];
+        if (nud == null) {
+            throw new ParseError("Unexpected token "+type(t.type));
+        }
+        Node node;
+        try {
+            node = nud.nud(this,t,tab.nbp[t.kind]);
+        }
+        catch (Incomplete e) {
+            throw e.open(t,null);
+        }
         for (;;) {
             t = token;
-            Spec.LeftInfo leftInfo = spec.lookupLeft(t.type);
-            if (rbp >= leftInfo.lbp) {
+            LED led = tab.led[t.kind];
+            if (led == null) {
+                throw new ParseError("Unexpected token "+type(t.type));
+            }
+            if (rbp >= tab.lbp[t.kind]) {
+                if (expected != null && t.kind == Tokens.EOF_KIND) {
+                    tab.continuations(rbp,expected);
+                    last = node;
+                }
                 break;
             }
             nextToken(); // skip over the token, e.g. / *
-            node = leftInfo.fn.led(this,t,node,leftInfo.rbp);
+            try {
+                node = led.led(this,t,node,tab.rbp[t.kind]);
+            }
+            catch (Incomplete e) {
+                throw e.open(t,node);
+            }
         }
         return node;
     }
 
     @Override
     public Node parse(CharBuffer src)  {
-        lexer.reset(src);
+        snapshot();
+        measure(src);
+        return start(lexer.reset(src));
+    }
+
+    @Override
+    public Node parse(TokenSource src)  {
+        snapshot();
+        if (src instanceof TokenTable) {
+            Spec.Table t = ((TokenTable)src).grammar;
+            if (t != null && t.spec() == spec) {
+                table = t;
+                lexer.use(t.lexicon);
+            }
+        }
+        return start(src);
+    }
+
+    /** Take the current grammar version for a parse and its lexer. */
+    void snapshot() {
+        table = spec.table();
+        lexer.use(table.lexicon);
+    }
+
+    /** Fail before lexing an input that is over the length limit. */
+    void measure(CharBuffer src) {
+        token = null;
+        spent = depth = 0;
+        if (limits != null && src.remaining() > limits.length) exceed(Limits.Exceeded.LENGTH);
+    }
+
+    Node start(TokenSource src) {
+        tokens = src;
+        token = null;
+        head = count = 0;
+        spent = depth = 0;
+        if (limits != null) {
+            deadline = System.nanoTime() + limits.nanos;
+            if (limits.cancelled) exceed(Limits.Exceeded.CANCELLED);
+        }
+        drop(0);
+        if (memo != null) memo.clear();
         nextToken();
         return parseUntil(0);
     }
 
+    @Override
+    public Completion<Node> complete(CharBuffer src) {
+        Map<Long,Memo> m = memo;
+        memo = null;
+        expected = new BitSet();
+        last = null;
+        try {
+            Node tree = parse(src);
+            expected.set(Tokens.EOF_KIND);
+            return new Completion<>(tree,tree,Collections.emptyList(),Collections.emptyList(),types(expected));
+        }
+        catch (Incomplete e) {
+            Collections.reverse(e.pending);
+            Collections.reverse(e.operands);
+            return new Completion<>(null,last,e.pending,e.operands,types(expected));
+        }
+        finally {
+            expected = null;
+            last = null;
+            memo = m;
+        }
+    }
+
+    Set<String> types(BitSet kinds) {
+        Set<String> s = new LinkedHashSet<>();
+        for (int k = kinds.nextSetBit(0); k >= 0; k = kinds.nextSetBit(k+1)) {
+            s.add(table.lexicon.base.type(k));
+        }
+        return s;
+    }
+
+    @Override
+    public TokenTable lex(CharBuffer src) {
+        snapshot();
+        measure(src);
+        TokenTable t = lexer.tabulate(src);
+        t.grammar = table;
+        return t;
+    }
+
+    @Override
+    public Parser fork() {
+        Parser p = new Parser(lexer.symbols);
+        p.spec = spec;
+        return p;
+    }
+
+    @Override
+    public Pipeline pipe(InputStream in) {
+        return new Pipeline(lexer.symbols,spec.table().lexicon,in);
+    }
+
     public static String str(Token t) {
-        return "Token("+type(t.type)+','+t.info+','+t.text+')';
+        return "Token("+type(t.type)+','+t.info+','+t.text()+')';
     }
 
 }
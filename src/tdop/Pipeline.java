@@ -0,0 +1,228 @@
+package tdop;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+import java.nio.CharBuffer;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static tdop.TDOP.*;
+
+/**
+ * Tokens lexed on a producer thread, for a Parser on another.
+ *
+ * The producer reads the input a CHUNK of chars at a time, gunzipping it
+ * if it starts with the gzip magic number, and lexes each chunk as it
+ * comes; a token that reaches the end of a chunk is lexed again with the
+ * next one, so none is split. Tokens go in batches of BATCH, and what is
+ * lexed is handed over before each read, through a bounded single-producer
+ * single-consumer ring. The producer waits while the ring is full, and
+ * the parser waits while it is empty, spinning briefly before parking;
+ * each side touches the shared indexes once per batch, not once per token.
+ * So decoding overlaps the parse, and memory is bounded by the ring and
+ * the chunks that tokens still refer to, not by the input.
+ *
+ * A pipeline is read once, front to back: position(p) can't move back,
+ * so mark()/reset() and lexer modes don't work with it.
+ * Close it to stop the producer if the parse ends early.
+ */
+public class Pipeline implements TokenSource, Closeable {
+
+    public static final int BATCH = 256;
+    static final int RING = 64; // batches; a power of 2
+    static final int SPINS = 100;
+    static final int CHUNK = 1 << 16;         // chars read at a time
+
+    final Token[][] ring = new Token[RING][];
+    final AtomicLong head = new AtomicLong(); // the next batch to take
+    final AtomicLong tail = new AtomicLong(); // the next batch to put
+    volatile Thread producer, consumer;       // parked, if waiting
+    volatile boolean finished, closed;
+    volatile Throwable failure;
+    volatile int limit;                       // the input length, once finished
+
+    Token[] batch = new Token[0];
+    int index;
+    int position;
+
+    Pipeline(Symbols symbols, Tokenizer.Lexicon lexicon, InputStream in) {
+        Thread producer = new Thread(() -> produce(symbols,lexicon,in), "tdop-lexer");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    // runs on the producer thread
+    void produce(Symbols symbols, Tokenizer.Lexicon lexicon, InputStream in) {
+        try (Reader r = reader(in)) {
+            Tokenizer lexer = new Tokenizer();
+            lexer.symbols(symbols);
+            lexer.use(lexicon);
+            CharBuffer w = CharBuffer.allocate(0);
+            lexer.reset(w);
+            int base = 0;
+            boolean eof = false;
+            Token[] b = new Token[BATCH];
+            int n = 0;
+            while (!closed) {
+                int from = w.position();
+                if (lexer.hasNext()) {
+                    Token t = lexer.next();
+                    if (eof || w.position() < w.limit()) {
+                        b[n++] = t;
+                        if (n == BATCH) {
+                            put(b);
+                            b = new Token[BATCH];
+                            n = 0;
+                        }
+                        continue;
+                    }
+                    // t may run on into the next chunk; lex it again from there
+                    w.position(t.offset-base);
+                } else if (eof) {
+                    break;
+                } else {
+                    w.position(from);
+                }
+                // hand over what's lexed before a read that may block
+                if (n > 0) {
+                    put(Arrays.copyOf(b,n));
+                    n = 0;
+                }
+                // a new window, as tokens may still view the old one's chars
+                int keep = w.remaining();
+                char[] a = new char[keep+CHUNK];
+                w.get(a,0,keep);
+                base += w.position()-keep;
+                int k = r.read(a,keep,CHUNK);
+                if (k < 0) {
+                    eof = true;
+                    k = 0;
+                }
+                w = CharBuffer.wrap(a,0,keep+k);
+                lexer.window(w,base);
+            }
+            if (n > 0) put(Arrays.copyOf(b,n));
+            limit = base+w.limit();
+        }
+        catch (Throwable e) {
+            failure = e;
+        }
+        finally {
+            finished = true;
+            wake(consumer);
+        }
+    }
+
+    static Reader reader(InputStream in) throws IOException {
+        in = new BufferedInputStream(in);
+        in.mark(2);
+        int b0 = in.read(), b1 = in.read();
+        in.reset();
+        if (b0 == 0x1f && b1 == 0x8b) in = new GZIPInputStream(in,CHUNK);
+        return new InputStreamReader(in,UTF_8);
+    }
+
+    void put(Token[] b) {
+        long t = tail.get();
+        for (int spins = 0; t - head.get() == RING; spins++) {
+            if (closed) return;
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                producer = Thread.currentThread();
+                if (t - head.get() == RING && !closed) LockSupport.park(this);
+                producer = null;
+            }
+        }
+        ring[(int)t & (RING-1)] = b;
+        tail.set(t+1);
+        wake(consumer);
+    }
+
+    /** Take the next batch, or null at the end. */
+    Token[] take() {
+        long h = head.get();
+        for (int spins = 0; h == tail.get(); spins++) {
+            if (finished && h == tail.get()) {
+                Throwable e = failure;
+                if (e instanceof IOException) throw new UncheckedIOException((IOException)e);
+                if (e instanceof RuntimeException) throw (RuntimeException)e;
+                if (e != null) throw new IllegalStateException(e);
+                return null;
+            }
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                consumer = Thread.currentThread();
+                if (h == tail.get() && !finished) LockSupport.park(this);
+                consumer = null;
+            }
+        }
+        int i = (int)h & (RING-1);
+        Token[] b = ring[i];
+        ring[i] = null;
+        head.set(h+1);
+        wake(producer);
+        return b;
+    }
+
+    // the waiting side sets its field before its last check, and the
+    // other side reads it after publishing, so a wakeup can't be lost
+    static void wake(Thread t) {
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (index < batch.length) return true;
+        Token[] b = take();
+        if (b == null) return false;
+        batch = b;
+        index = 0;
+        return true;
+    }
+
+    @Override
+    public Token next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        position++;
+        return batch[index++];
+    }
+
+    @Override
+    public Token end() {
+        return new Token(Tokens.EOF_KIND,EOF,0,null,limit);
+    }
+
+    /** The position is the number of tokens read. */
+    @Override
+    public int position() {
+        return position;
+    }
+    @Override
+    public void position(int p) {
+        if (p != position) {
+            throw new UnsupportedOperationException("a Pipeline can't be rewound");
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        wake(producer);
+    }
+
+}
@@ -0,0 +1,127 @@
+package tdop;
+
+import java.util.Arrays;
+
+/**
+ * A symbol table for NAME tokens.
+ * Names are interned straight from a char range and numbered densely from 0;
+ * a lookup of a known name does not allocate.
+ * Lookups are lock-free, unless they race the insertion of the name they
+ * find, and insertions are serialized,
+ * so one table can be shared by any number of Tokenizers.
+ */
+public class Symbols {
+
+    static final class Entry {
+        Entry(String s, int h, int i, Entry e) {
+            name=s; hash=h; id=i; next=e;
+        }
+        final String name;
+        final int hash, id;
+        final Entry next;
+    }
+
+    volatile Entry[] table = new Entry[64];
+    volatile String[] names = new String[64];
+    volatile int size;
+
+    /**
+     * Return the symbol id of the name in a[offset,offset+length).
+     */
+    public int intern(char[] a, int offset, int length) {
+        return entry(a,offset,length).id;
+    }
+
+    /**
+     * Return the entry of the name in a[offset,offset+length), adding it if
+     * it is new; its name is safe to read, as a final field, without a lock.
+     */
+    Entry entry(char[] a, int offset, int length) {
+        int h = hash(a,offset,length);
+        Entry e = find(table,h,a,offset,length);
+        return e != null ? e : add(h,a,offset,length);
+    }
+
+    public int intern(String s) {
+        return intern(s.toCharArray(),0,s.length());
+    }
+
+    /**
+     * Return the canonical String for a symbol id.
+     */
+    public String name(int id) {
+        String[] n = names;
+        String s = id < n.length ? n[id] : null;
+        return s != null ? s : named(id);
+    }
+
+    // add() fills names[id] and links the entry into the table in place
+    // before it publishes either array, so a reader that found the entry
+    // may not see the name yet; the lock orders it after that add()
+    synchronized String named(int id) {
+        return names[id];
+    }
+
+    /**
+     * Return the number of symbols; ids range from 0 to size()-1.
+     */
+    public int size() {
+        return size;
+    }
+
+    synchronized Entry add(int h, char[] a, int offset, int length) {
+        Entry[] t = table;
+        Entry e = find(t,h,a,offset,length);
+        if (e != null) return e;
+        int id = size;
+        String[] n = names;
+        if (id == n.length) {
+            n = Arrays.copyOf(n,id*2);
+        }
+        n[id] = new String(a,offset,length);
+        if (id >= t.length - (t.length >>> 2)) {
+            t = rehash(t);
+        }
+        int i = h & (t.length-1);
+        e = t[i] = new Entry(n[id],h,id,t[i]);
+        names = n;
+        table = t;
+        size = id+1;
+        return e;
+    }
+
+    static Entry[] rehash(Entry[] t) {
+        Entry[] r = new Entry[t.length*2];
+        for (Entry e : t) {
+            for (; e != null; e = e.next) {
+                int i = e.hash & (r.length-1);
+                r[i] = new Entry(e.name,e.hash,e.id,r[i]);
+            }
+        }
+        return r;
+    }
+
+    static Entry find(Entry[] t, int h, char[] a, int offset, int length) {
+        for (Entry e = t[h & (t.length-1)]; e != null; e = e.next) {
+            if (e.hash == h && equals(e.name,a,offset,length)) return e;
+        }
+        return null;
+    }
+
+    static boolean equals(String s, char[] a, int offset, int length) {
+        if (s.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != a[offset+i]) return false;
+        }
+        return true;
+    }
+
+    static int hash(char[] a, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset+length; i++) {
+            h = 31*h + a[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -1,13 +1,36 @@
 package tdop;
 
+import java.io.InputStream;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
 import java.nio.CharBuffer;
 
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
 public interface TDOP {
 
+    @SuppressWarnings("unchecked") // tdop.Parser is raw, for any N
     static <N extends Node> Parser<N> newParser() {
         return new tdop.Parser();
     }
 
+    /**
+     * Return a Parser that interns NAME tokens in a shared symbol table.
+     */
+    @SuppressWarnings("unchecked") // tdop.Parser is raw, for any N
+    static <N extends Node> Parser<N> newParser(Symbols symbols) {
+        return new tdop.Parser(symbols);
+    }
+
     interface Parser<N extends Node> {
         /**
          * Test if we are looking at a token.
@@ -17,10 +40,60 @@ public interface TDOP {
          * Move to the next token.
          */
         void nextToken();
+        /**
+         * Look at the token n places past the current token without moving;
+         * peek(0) is the current token and n is at most Parser.LOOKAHEAD.
+         */
+        Token peek(int n);
+        /**
+         * Switch the lexer to a named mode; the current token is lexed again in that mode.
+         */
+        void pushMode(String name);
+        /**
+         * Switch the lexer back to the mode before the last pushMode;
+         * the current token is lexed again in that mode.
+         */
+        void popMode();
+        /**
+         * Save the position of the parser and lexer, for speculative parsing.
+         */
+        Mark mark();
+        /**
+         * Return to a position saved by mark().
+         */
+        void reset(Mark mark);
+        /**
+         * Cache parseUntil results by (token offset, rbp) so that
+         * backtracking over the same input does not parse it again.
+         * Handlers must not depend on state outside the parser.
+         */
+        void memoize(boolean flag);
         /**
          * Assert the type of the current token, then move to the next token.
          */
         void expect(String type);
+        /**
+         * Start collecting nodes on the parser's scratch stack,
+         * e.g. the children of a list; returns the mark for close().
+         * Collections may nest.
+         */
+        int open();
+        /**
+         * Push a node onto the scratch stack.
+         */
+        void push(N node);
+        /**
+         * Pop the nodes pushed since open() into an exact-size array.
+         */
+        N[] close(int mark, IntFunction<N[]> array);
+        /**
+         * Skip the tokens inside the bracket pair whose opening bracket was
+         * just consumed, and return them as a TokenSource to parse later;
+         * the current token becomes the closing bracket.
+         * Returns null, skipping nothing, unless the source is a TokenTable
+         * with a bracket index (see TokenTable.index()); parse the group then.
+         */
+        TokenSource skipGroup();
         /**
          * Parse to the right, eating tokens until we encounter a token
          * with binding power LESS THAN OR EQUAL TO rbp.
@@ -30,6 +103,35 @@ public interface TDOP {
          * Initial entry point.
          */
         N parse(CharBuffer src);
+        /**
+         * Parse an input that may stop short, e.g. the text before an editor's
+         * cursor: running out of input is a completion point, not an error.
+         * Other errors are thrown as usual.
+         */
+        Completion<N> complete(CharBuffer src);
+        /**
+         * Parse tokens from another source, e.g. a TokenTable from lex().
+         */
+        N parse(TokenSource tokens);
+        /**
+         * Lex all of src into a packed token table, for parse(TokenSource);
+         * the table is parsed with the grammar version it was lexed for.
+         */
+        TokenTable lex(CharBuffer src);
+        /**
+         * Lex a UTF-8 or gzipped UTF-8 stream on another thread,
+         * for parse(TokenSource); see Pipeline.
+         */
+        Pipeline pipe(InputStream in);
+        /**
+         * Apply budgets to the parses that follow, or none if null.
+         */
+        void limit(Limits limits);
+        /**
+         * A new Parser for the same grammar and symbols, e.g. for a handler
+         * to parse a skipped group with while this one is busy.
+         */
+        Parser<N> fork();
         /**
          * Return the Parser's specification instance.
          */
@@ -38,6 +140,11 @@ public interface TDOP {
 
     /**
      * Specification for a TDOP parser.
+     * Each change publishes a new version of the grammar; its lookup
+     * tables are frozen into arrays indexed by Token.kind when a parse
+     * first needs them, so a run of changes costs one freeze. A parse uses the
+     * version current when it starts, so the Spec may be changed from
+     * another thread while the Parser is running.
      */
     interface Spec<N extends Node> {
         /**
@@ -56,6 +163,22 @@ public interface TDOP {
          * Examples: exponentiation, assignment, ternary operator.
          */
         Spec<N> Right(int bp, LED<N> led, String... tokens);
+        /**
+         * Register tokens that are lexed in a named lexer mode,
+         * creating the mode with the given SCAN_ flags if needed.
+         * Their handlers are registered with Null, Left or Right as usual.
+         * The default mode is named "".
+         */
+        Spec<N> mode(String name, int scan, String... tokens);
+        /**
+         * Make a batch of changes and publish them as one version,
+         * so no parse sees some of them without the others.
+         */
+        Spec<N> update(Consumer<Spec<N>> changes);
+        /**
+         * The number of versions published since the Parser was made.
+         */
+        int version();
     }
 
     /**
@@ -63,6 +186,23 @@ public interface TDOP {
      */
     interface Node {}
 
+    /**
+     *  A saved parser position.
+     */
+    interface Mark {}
+
+    /**
+     *  A source of tokens for a Parser.
+     */
+    interface TokenSource extends Iterator<Token> {
+        /** Return the EOF token, for when there are no more tokens. */
+        Token end();
+        /** Return the position of the next token. */
+        int position();
+        /** Move to a position returned by position(). */
+        void position(int p);
+    }
+
     /**
      *  A "left denotation" function.
      */
@@ -70,6 +210,13 @@ public interface TDOP {
         N led(Parser<N> parser, Token token, N node, int rbp);
     }
 
+    /**
+     *  Marks a NUD or LED that only reports an error, e.g.
+     *  (NUD<N> & Rejecting)(p,t,bp) -> { throw ... }, so that complete()
+     *  doesn't offer its tokens. The Spec's default handlers are Rejecting.
+     */
+    interface Rejecting {}
+
     /**
      *  A "null denotation" function.
      */
@@ -77,16 +224,115 @@ public interface TDOP {
          N nud(Parser<N> parser, Token token, int bp);
     }
 
+    /**
+     *  Declares a method N m(Parser<N>, Token, int) as the nud of tokens,
+     *  for GrammarProcessor to register as Spec.Null(bp, m, tokens) would.
+     */
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.METHOD)
+    @interface Nud {
+        int bp();
+        String[] value();
+        /** Register the handler as Rejecting. */
+        boolean rejecting() default false;
+    }
+
+    /**
+     *  Declares a method N m(Parser<N>, Token, N, int) as the led of tokens,
+     *  for GrammarProcessor to register as Spec.Left(bp, m, tokens) would,
+     *  or Spec.Right if right.
+     */
+    @Retention(RetentionPolicy.SOURCE)
+    @Target(ElementType.METHOD)
+    @interface Led {
+        int bp();
+        String[] value();
+        boolean right() default false;
+        /** Register the handler as Rejecting. */
+        boolean rejecting() default false;
+    }
+
     /**
      *  Parser input (from Lexer).
+     *  For NAME tokens, text is the interned name and info its symbol id.
+     *  For STRING tokens the text field is null; text() makes it on demand.
+     *  The kind is a dense number for the type, fixed for a grammar;
+     *  the offset is the buffer position where the token starts.
      */
     static class Token {
-        Token(String t, int n, String s) {
-            type=t; text=s; info=n;
+        Token(int k, String t, int n, String s, int o) {
+            kind=k; type=t; text=s; info=n; offset=o;
         }
+        public final int kind;
         public final String type;
         public final String text;
         public final int info;
+        public final int offset;
+        /**
+         * The token's text, as the lexer found it.
+         */
+        public String text() {
+            return text;
+        }
+        /**
+         * The token's value; for STRING tokens, the text between
+         * the quotes with any escape sequences resolved.
+         */
+        public CharSequence value() {
+            return text;
+        }
+    }
+
+    /**
+     *  The result of Parser.complete().
+     *  The expected types come from the Spec's tables: the tokens with a
+     *  prefix handler if an operand is missing, the infix tokens that bind
+     *  tightly enough to continue each finished operand, and the tokens the
+     *  handlers still running would expect() or tested for with atToken();
+     *  EOF if the input is complete. Tokens whose handlers are Rejecting
+     *  are left out; a handler's peek() at the end can't be seen.
+     */
+    static class Completion<N extends Node> {
+        Completion(N t, N l, List<Token> p, List<N> o, Set<String> e) {
+            tree=t; last=l; pending=p; operands=o; expected=e;
+        }
+        /** The whole tree, or null if the input stops short. */
+        public final N tree;
+        /** The largest subtree that ends at the end of the input, if any. */
+        public final N last;
+        /** The tokens whose handlers were still running at the end, outermost first. */
+        public final List<Token> pending;
+        /** The left operand of each pending token; null for a prefix token. */
+        public final List<N> operands;
+        /** The types of the tokens that could come next. */
+        public final Set<String> expected;
+    }
+
+    /**
+     *  Budgets for a parse, and a token to cancel it with from another thread.
+     *  A parse that runs over a budget or is cancelled throws a
+     *  Parser.LimitError saying which and where; it is not a ParseError.
+     *  The deadline and cancellation are checked every 64 tokens.
+     */
+    static class Limits {
+        public enum Exceeded { LENGTH, TOKENS, DEPTH, DEADLINE, CANCELLED }
+
+        int length = Integer.MAX_VALUE, tokens = Integer.MAX_VALUE, depth = Integer.MAX_VALUE;
+        long nanos = Long.MAX_VALUE;
+        volatile boolean cancelled;
+
+        /** The most chars of input. */
+        public Limits length(int n) { length = n; return this; }
+        /** The most tokens read. */
+        public Limits tokens(int n) { tokens = n; return this; }
+        /** The deepest nesting of parseUntil calls. */
+        public Limits depth(int n) { depth = n; return this; }
+        /** The longest time a parse may run. */
+        public Limits deadline(long time, TimeUnit unit) { nanos = unit.toNanos(time); return this; }
+
+        /** Stop a parse using these limits; it can't be undone. */
+        public void cancel() { cancelled = true; }
+        public boolean cancelled() { return cancelled; }
     }
 
     // Special Token.type values
@@ -97,9 +343,21 @@ public interface TDOP {
     static final String NUMBER  = "d\u0000\uFFFF";
     static final String STRING  = "s\u0000\uFFFF";
     static final String COMMENT = "c\u0000\uFFFF";
+    static final String TEXT    = "t\u0000\uFFFF";
 
     static final String UNRECOGNIZED = "?\u0000\uFFFF";
 
+    // Lexer mode scan flags
+
+    static final int SCAN_NAMES    = 0x01;
+    static final int SCAN_NUMBERS  = 0x02;
+    static final int SCAN_STRINGS  = 0x04;
+    static final int SCAN_COMMENTS = 0x08;
+    static final int SKIP_SPACE    = 0x10;
+    static final int SCAN_TEXT     = 0x20; // other characters make TEXT tokens
+
+    static final int SCAN_ALL = 0x1f; // the default mode
+
     static String type(String t) {
         switch (t) {
             case EOL: return "EOL";
@@ -108,6 +366,7 @@ public interface TDOP {
             case NUMBER: return "NUMBER";
             case STRING: return "STRING";
             case COMMENT: return "COMMENT";
+            case TEXT: return "TEXT";
         }
         if (t.length() > 1 && t.charAt(1) == '\u0000') {
             return "UNRECOGNIZED"+t.charAt(0);
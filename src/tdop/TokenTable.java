@@ -0,0 +1,152 @@
+package tdop;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import static tdop.TDOP.*;
+
+/**
+ * The tokens of a whole input, packed 4 ints to a token:
+ * kind, start, length and info.
+ * A table is filled by Tokenizer.tabulate in one pass, without objects;
+ * Tokens are made only as a Parser reads them, and the table can be
+ * read again for a reparse, from any position.
+ * An optional bracket index pairs up (), [] and {} tokens, so a handler
+ * can skip a bracketed group and parse it later; see Parser.skipGroup.
+ */
+public class TokenTable implements TokenSource {
+
+    static final int ESCAPED = 0x10000; // info flag for STRING tokens with a backslash
+
+    final Tokens types;
+    final Symbols symbols;
+    final char[] src;
+    final int limit;
+
+    int[] table;
+    int size, next;
+    int[] match; // the bracket index, if built
+    Parser.Spec.Table grammar; // the version it was lexed for, if by a Parser
+
+    TokenTable(Tokenizer lexer, char[] src, int limit, int capacity) {
+        this.types = lexer.lexicon.base; this.symbols = lexer.symbols;
+        this.src = src; this.limit = limit;
+        table = new int[Math.max(capacity,16)*4];
+    }
+
+    /** The entries [from,to) of t, ending where entry to starts. */
+    TokenTable(TokenTable t, int from, int to) {
+        types = t.types; symbols = t.symbols;
+        src = t.src; limit = t.start(to);
+        table = t.table; match = t.match; grammar = t.grammar;
+        size = to; next = from;
+    }
+
+    void add(int kind, int start, int length, int info) {
+        int i = size*4;
+        if (i == table.length) {
+            table = Arrays.copyOf(table,i*2);
+        }
+        table[i] = kind;
+        table[i+1] = start;
+        table[i+2] = length;
+        table[i+3] = info;
+        size++;
+    }
+
+    public int size() { return size; }
+
+    public int kind(int i) { return table[i*4]; }
+    public int start(int i) { return table[i*4+1]; }
+    public int length(int i) { return table[i*4+2]; }
+    public int info(int i) { return table[i*4+3]; }
+
+    static final String[] BRACKETS = { "(", ")", "[", "]", "{", "}" };
+
+    /**
+     * Build the bracket index in one pass over the packed kinds;
+     * brackets in strings and comments were never lexed as brackets.
+     * Throws ParseError if the brackets don't balance.
+     */
+    public TokenTable index() {
+        byte[] cls = new byte[types.types.size()];
+        for (int b = 0; b < BRACKETS.length; b++) {
+            Integer k = types.kinds.get(BRACKETS[b]);
+            if (k != null) cls[k] = (byte)(b % 2 == 0 ? b/2+1 : -(b/2+1));
+        }
+        int[] m = new int[size], open = new int[16];
+        int depth = 0;
+        for (int i = 0; i < size; i++) {
+            int c = cls[table[i*4]];
+            if (c > 0) {
+                if (depth == open.length) open = Arrays.copyOf(open,depth*2);
+                open[depth++] = i;
+            } else if (c < 0) {
+                if (depth == 0 || cls[kind(open[depth-1])] != -c) {
+                    throw new Parser.ParseError("unmatched "+BRACKETS[-c*2-1]+" at "+start(i));
+                }
+                int j = open[--depth];
+                m[i] = j; m[j] = i;
+            } else {
+                m[i] = -1;
+            }
+        }
+        if (depth > 0) {
+            throw new Parser.ParseError("unclosed "+BRACKETS[cls[kind(open[depth-1])]*2-2]+" at "+start(open[depth-1]));
+        }
+        match = m;
+        return this;
+    }
+
+    /** The entry of the bracket paired with entry i, or -1; needs index(). */
+    public int match(int i) {
+        return match[i];
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next < size;
+    }
+
+    @Override
+    public Token next() {
+        if (next >= size) {
+            throw new NoSuchElementException();
+        }
+        return token(next++);
+    }
+
+    /** Make the Token for entry i. */
+    public Token token(int i) {
+        int kind = kind(i), start = start(i), length = length(i), info = info(i);
+        String type = types.type(kind);
+        switch (kind) {
+            case Tokens.NAME_KIND:
+                return new Token(kind,type,info,symbols.name(info),start);
+            case Tokens.STRING_KIND:
+                return new Literal(info & 0x0ffff,start,src,start+1,start+length-1,(info & ESCAPED) != 0);
+            case Tokens.NUMBER_KIND:
+            case Tokens.COMMENT_KIND:
+            case Tokens.TEXT_KIND:
+            case Tokens.UNRECOGNIZED_KIND:
+                return new Token(kind,type,info,new String(src,start,length),start);
+        }
+        return new Token(kind,type,info,null,start);
+    }
+
+    @Override
+    public Token end() {
+        return new Token(Tokens.EOF_KIND,EOF,0,null,limit);
+    }
+
+    /** The position is the index of the next entry. */
+    @Override
+    public int position() {
+        return next;
+    }
+    @Override
+    public void position(int p) {
+        next = p;
+    }
+
+}
@@ -2,7 +2,8 @@ package tdop;
 
 import java.nio.CharBuffer;
 
-import java.util.Iterator;
+import java.util.Map;
+import java.util.HashMap;
 import java.util.NoSuchElementException;
 
 import static java.lang.Character.*;
@@ -10,12 +11,42 @@ import static tdop.TDOP.*;
 
 // https://commandcenter.blogspot.com/2011/08/regular-expressions-in-lexing-and.html
 
-public class Tokenizer extends Tokens implements Iterator<Token> {
+public class Tokenizer extends Tokens implements TokenSource {
 
     CharBuffer buf;
     int ch, offset;
+    int base; // the offset of buf[0] in the input
     Token token;
     boolean eolIsSignificant;
+    Symbols symbols = new Symbols();
+    TokenTable table; // if lexing into a packed table
+
+    // named lexer modes; the Tokenizer itself is the default mode "".
+    // These are only written to; lexing reads a frozen Lexicon of them
+    Map<String,Tokens> modes = new HashMap<>();
+    Lexicon lexicon;
+    Modes stack;
+    Tokens mode;
+
+    /** The lexical tables of every mode, frozen for one grammar version. */
+    static class Lexicon {
+        Lexicon(Tokenizer live) {
+            base = live.freeze(null);
+            Map<String,Tokens> m = new HashMap<>();
+            live.modes.forEach((k,v) -> m.put(k,v.freeze(base)));
+            modes = m;
+        }
+        final Tokens base;
+        final Map<String,Tokens> modes;
+    }
+
+    static class Modes {
+        Modes(Tokens m, Modes o) {
+            mode=m; outer=o;
+        }
+        final Tokens mode;
+        final Modes outer;
+    }
 
     @Override
     public boolean hasNext() {
@@ -37,12 +68,83 @@ public class Tokenizer extends Tokens implements Iterator<Token> {
 
     public Tokenizer reset(CharBuffer cb) {
         buf = cb;
+        base = 0;
         token = null;
-        if (word == null) words();
-        if (operator == null) operators();
+        if (lexicon == null) lexicon = new Lexicon(this);
+        modes(new Modes(lexicon.base,null));
         return this;
     }
 
+    /**
+     * Go on lexing in cb, the next window of a longer input whose char 0
+     * is at offset base; the mode stack is kept.
+     */
+    void window(CharBuffer cb, int base) {
+        buf = cb;
+        this.base = base;
+        token = null;
+    }
+
+    /** Lex with tables frozen from this or another Tokenizer, from the next reset. */
+    void use(Lexicon l) {
+        lexicon = l;
+    }
+
+    Tokens mode(String name, int scan) {
+        if (name.isEmpty()) return this;
+        return modes.computeIfAbsent(name, k -> new Tokens(this,scan));
+    }
+
+    void pushMode(String name) {
+        Tokens m = name.isEmpty() ? lexicon.base : lexicon.modes.get(name);
+        if (m == null) {
+            throw new IllegalArgumentException("no lexer mode "+name);
+        }
+        modes(new Modes(m,stack));
+    }
+    void popMode() {
+        if (stack.outer == null) {
+            throw new IllegalStateException("no lexer mode to pop");
+        }
+        modes(stack.outer);
+    }
+    void modes(Modes m) {
+        stack = m;
+        mode = m.mode;
+    }
+
+    /**
+     * Lex all of cb in one pass into a packed token table.
+     */
+    public TokenTable tabulate(CharBuffer cb) {
+        reset(cb);
+        table = new TokenTable(this,cb.array(),cb.limit(),cb.remaining()/4);
+        try {
+            while (nextToken() > -1) {}
+            return table;
+        }
+        finally {
+            table = null;
+        }
+    }
+
+    @Override
+    public Token end() {
+        return new Token(EOF_KIND,EOF,0,null,buf.limit());
+    }
+
+    // the lexer state between tokens is the buffer position and mode stack
+
+    @Override
+    public int position() {
+        return buf.position();
+    }
+    @Override
+    public void position(int p) {
+        buf.position(p);
+        token = null;
+    }
+
     public Iterable<Token> wrap(CharBuffer cb) {
         return () -> reset(cb);
     }
@@ -51,6 +153,10 @@ public class Tokenizer extends Tokens implements Iterator<Token> {
         eolIsSignificant = flag;
     }
 
+    public void symbols(Symbols table) {
+        symbols = table;
+    }
+
     // ch = buf[position++];
 
     int pop() {
@@ -81,34 +187,59 @@ public class Tokenizer extends Tokens implements Iterator<Token> {
         return new String(buf.array(),offset,count);
     }
 
-    void makeToken(String type, int nval, String sval) {
-        assert(type.length() > 0);
-        token = new Token(type,nval,sval);
+    void makeToken(int kind, int nval, String sval) {
+        if (table != null) {
+            table.add(kind,offset,buf.position()-offset,nval);
+        } else {
+            token = new Token(kind,mode.type(kind),nval,sval,base+offset);
+        }
+    }
+    void makeText(int kind, int nval) {
+        makeToken(kind,nval,table != null ? null : text());
     }
 
     int nextToken() {
-        if (isWhitespace(pop())) ignore();
+        Tokens m = mode;
+        if (isWhitespace(pop()) && m.scans(SKIP_SPACE)) ignore();
         if (ch == -1) return -1;
-        if (ch == '\n') return newline();
         // mark start of text
         offset = buf.position() - 1;
+        if (ch == '\n' && m.scans(SKIP_SPACE)) return newline();
         // text spans
-        if (isComment(ch,peek())) return comment();
-        if (isQuote(ch)) return quoted();
+        if (m.scans(SCAN_COMMENTS) && isComment(ch,peek())) return comment();
+        if (m.scans(SCAN_STRINGS) && isQuote(ch)) return quoted();
         // text units
-        if (isJavaIdentifierStart(ch)) return name();
-        if (isDec(ch)) return number();
-        if (isSpecial(ch)) return operator();
+        if (m.scans(SCAN_NAMES) && isJavaIdentifierStart(ch)) return name();
+        if (m.scans(SCAN_NUMBERS) && isDec(ch)) return number();
+        if (m.isSpecial(ch)) return operator();
+        if (m.scans(SCAN_TEXT)) return run();
         /* else */ return unrecognized();
     }
 
+    int run() {
+        while (pop() != -1 && !starts(ch)) {}
+        push();
+        makeText(TEXT_KIND,0);
+        return 't';
+    }
+
+    /** Test if c starts a token other than TEXT in the current mode. */
+    boolean starts(int c) {
+        Tokens m = mode;
+        return m.isSpecial(c)
+            || (m.scans(SKIP_SPACE) && isWhitespace(c))
+            || (m.scans(SCAN_STRINGS) && isQuote(c))
+            || (m.scans(SCAN_NAMES) && isJavaIdentifierStart(c))
+            || (m.scans(SCAN_NUMBERS) && isDec(c));
+    }
+
     void ignore() {
         do { if (ch == '\n' && eolIsSignificant) break; }
         while (isWhitespace(pop()));
     }
 
     int newline() {
-        makeToken(EOL,0,null);
+        makeToken(EOL_KIND,0,null);
         return 'l';
     }
 
@@ -117,27 +248,29 @@ public class Tokenizer extends Tokens implements Iterator<Token> {
         return unrecognized(text());
     }
     int unrecognized(String sval) {
-        makeToken(UNRECOGNIZED,0,sval);
+        makeToken(UNRECOGNIZED_KIND,0,sval);
         return '?';
     }
 
     int name() {
         while (isJavaIdentifierPart(pop())) {}
         push();
-        String key = text();
-        if (isWord(key)) {
-            makeToken(key,0,null);
+        // a keyword is looked up in place, so only names are interned
+        int length = buf.position()-offset;
+        int kind = mode.wordKind(buf.array(),offset,length);
+        if (kind > -1) {
+            makeToken(kind,0,null);
             return 'w';
         } else {
-            makeToken(NAME,0,key);
+            Symbols.Entry e = symbols.entry(buf.array(),offset,length);
+            makeToken(NAME_KIND,e.id,e.name);
             return 'n';
         }
     }
 
     int number() {
         int base = numeric();
-        if (base < 0) unrecognized(text());
-        makeToken(NUMBER,base,text());
+        makeText(NUMBER_KIND,base);
         return 'd';
     }
 
@@ -239,7 +372,7 @@ public class Tokenizer extends Tokens implements Iterator<Token> {
     }
     boolean tail() {
         if (ch != '_') { // nnn_
-            if (isWhitespace(ch) || isSpecial(ch)) { // nnn[\w|{special}]
+            if (isWhitespace(ch) || mode.isSpecial(ch)) { // nnn[\w|{special}]
                 push(); // set position to break character
                 return false;
             }
@@ -248,17 +381,22 @@ public class Tokenizer extends Tokens implements Iterator<Token> {
     }
 
     int operator() {
-        long op = 0;
-        do {
+        long op = 0, key = 0;
+        int n = 0, length = 0;
+        do { // longest match of up to 8 special chars
             op = (op << 8) | (ch & 0x0ff);
-            if (isOperator(op)) continue;
-            op >>>= 8;
-            break;
+            if (mode.isOperator(op)) {
+                key = op;
+                length = n+1;
+            }
         }
-        while (isSpecial(pop()));
-        push();
-        if (op == 0) return unrecognized(text());
-        makeToken(text(),(int)op,null);
+        while (++n < 8 && mode.isSpecial(pop()));
+        if (length == 0) {
+            buf.position(offset+1);
+            return unrecognized(text());
+        }
+        buf.position(offset+length);
+        makeToken(mode.operatorKind(key),(int)key,null);
         return 'o';
     }
 
@@ -276,7 +414,7 @@ public class Tokenizer extends Tokens implements Iterator<Token> {
             }
         }
         if (t < 0) return unrecognized(text());
-        makeToken(COMMENT,t,text());
+        makeText(COMMENT_KIND,t);
         return 'c';
     }
 
@@ -307,13 +445,18 @@ public class Tokenizer extends Tokens implements Iterator<Token> {
 
     int quoted() {
         int q = ch;
+        boolean escaped = false;
         while (pop() != -1) {
             if (ch == q) break;
             if (ch == '\n') break;
-            if (ch == '\\') skip(1);
+            if (ch == '\\') { skip(1); escaped = true; }
         }
         if (ch != q) return unrecognized(text());
-        makeToken(STRING,q,text());
+        if (table != null) {
+            makeToken(STRING_KIND,escaped ? q|TokenTable.ESCAPED : q,null);
+        } else {
+            token = new Literal(q,base+offset,buf.array(),offset+1,buf.position()-1,escaped);
+        }
         return 'q';
     }
 
@@ -2,34 +2,125 @@ package tdop;
 
 import java.util.Arrays;
 
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import static tdop.TDOP.*;
 
 class Tokens {
 
-    Matcher punct = Pattern.compile("[\\p{Punct}]+").matcher("");
-    Matcher alpha = Pattern.compile("[\\p{Alpha}]+").matcher("");
-
     Set<String> words = new HashSet<>();
     Set<String> operators = new HashSet<>();
 
+    // Token.kind numbers every registered type densely;
+    // the special types come first, in this order
+
+    static final int EOL_KIND = 0, EOF_KIND = 1, NAME_KIND = 2, NUMBER_KIND = 3,
+        STRING_KIND = 4, COMMENT_KIND = 5, UNRECOGNIZED_KIND = 6, TEXT_KIND = 7;
+
+    final Map<String,Integer> kinds;
+    final List<String> types;
+
+    // the lexemes this table's Tokenizer mode scans for
+    final int scan;
+
+    Tokens() {
+        kinds = new HashMap<>();
+        types = new ArrayList<>();
+        scan = SCAN_ALL;
+        for (String t : new String[] { EOL, EOF, NAME, NUMBER, STRING, COMMENT, UNRECOGNIZED, TEXT }) {
+            kind(t);
+        }
+    }
+
+    /** A table for another lexer mode, numbering kinds with the base table. */
+    Tokens(Tokens base, int scan) {
+        this(base.kinds,base.types,scan);
+    }
+
+    Tokens(Map<String,Integer> kinds, List<String> types, int scan) {
+        this.kinds = kinds;
+        this.types = types;
+        this.scan = scan;
+    }
+
+    /**
+     * An immutable copy of this table with its lookup arrays built, for a
+     * grammar snapshot; base is the frozen default mode, or null for it.
+     */
+    Tokens freeze(Tokens base) {
+        Tokens t = base == null
+                 ? new Tokens(Map.copyOf(kinds),List.copyOf(types),scan)
+                 : new Tokens(base.kinds,base.types,scan);
+        t.words = Set.copyOf(words);
+        t.operators = Set.copyOf(operators);
+        t.words();
+        t.operators();
+        return t;
+    }
+
+    boolean scans(int flag) {
+        return (scan & flag) != 0;
+    }
+
     void word(String ... a) {
         for (String s:a) {
-            if (punct.reset(s).matches()) operators.add(s);
-            else if (alpha.reset(s).matches()) words.add(s);
+            kind(s);
+            if (all(s,Tokens::isPunct)) operators.add(s);
+            else if (all(s,Tokens::isAlpha)) words.add(s);
+        }
+    }
+
+    interface CharClass { boolean has(int c); }
+
+    static boolean all(String s, CharClass cc) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            if (!cc.has(s.charAt(i))) return false;
         }
+        return n > 0;
+    }
+
+    // same as the POSIX \p{Punct} and \p{Alpha} classes
+
+    static boolean isPunct(int c) {
+        return ' ' < c && c < 127 && !isAlpha(c) && !(c >= '0' && c <= '9');
+    }
+    static boolean isAlpha(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    int kind(String type) {
+        Integer k = kinds.get(type);
+        if (k == null) {
+            k = types.size();
+            kinds.put(type,k);
+            types.add(type);
+        }
+        return k;
+    }
+
+    String type(int kind) {
+        return types.get(kind);
     }
 
     String[] word;
+    int[] wordKinds;
     long[] operator;
+    int[] operatorKinds;
     byte[] special = new byte[128];
 
     void words() {
         word = words.toArray(new String[words.size()]);
         Arrays.sort(word);
+        wordKinds = new int[word.length];
+        for (int i = 0; i < word.length; i++) {
+            wordKinds[i] = kinds.get(word[i]);
+        }
     }
 
     void operators() {
@@ -39,6 +130,10 @@ class Tokens {
             operator[i++] = ctoi(s);
         }
         Arrays.sort(operator);
+        operatorKinds = new int[operator.length];
+        for (i = 0; i < operator.length; i++) {
+            operatorKinds[i] = kinds.get(itoc(operator[i]));
+        }
     }
 
     long ctoi(String s) {
@@ -53,9 +148,47 @@ class Tokens {
         return key;
     }
 
-    boolean isWord(String key) {
-        return Arrays.binarySearch(word,key) >= 0;
+    static String itoc(long key) {
+        StringBuilder s = new StringBuilder(8);
+        for (; key != 0; key >>>= 8) {
+            s.append((char)(key & 0x0ff));
+        }
+        return s.reverse().toString();
+    }
+
+    /** Return the kind of a keyword, or -1. */
+    int wordKind(String key) {
+        int i = Arrays.binarySearch(word,key);
+        return i < 0 ? -1 : wordKinds[i];
     }
+    /** Return the kind of the word in a[offset,offset+length), or -1. */
+    int wordKind(char[] a, int offset, int length) {
+        int lo = 0, hi = word.length-1;
+        while (lo <= hi) {
+            int mid = (lo+hi) >>> 1;
+            int c = compare(word[mid],a,offset,length);
+            if (c < 0) lo = mid+1;
+            else if (c > 0) hi = mid-1;
+            else return wordKinds[mid];
+        }
+        return -1;
+    }
+
+    /** Compare as s.compareTo(new String(a,offset,length)) would. */
+    static int compare(String s, char[] a, int offset, int length) {
+        int n = Math.min(s.length(),length);
+        for (int i = 0; i < n; i++) {
+            int c = s.charAt(i) - a[offset+i];
+            if (c != 0) return c;
+        }
+        return s.length() - length;
+    }
+    /** Return the kind of an operator, or -1. */
+    int operatorKind(long key) {
+        int i = Arrays.binarySearch(operator,key);
+        return i < 0 ? -1 : operatorKinds[i];
+    }
+
     boolean isOperator(long key) {
         return Arrays.binarySearch(operator,key) >= 0;
     }
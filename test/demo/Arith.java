@@ -1,6 +1,6 @@
 package demo;
 
-import java.util.Arrays;
+import java.util.Objects;
 
 import static tdop.Parser.ParseError;
 import static tdop.TDOP.*;
@@ -8,22 +8,44 @@ import static tdop.TDOP.*;
 class Arith {
 
     Parser<SimpleNode> parser;
+    Nodes nodes;
+    boolean lazy;
 
     Arith() {
         parser = newParser();
         makeShellParser();
     }
 
+    /**
+     * An Arith whose nodes are hash-consed in a shared table,
+     * so that structurally equal subtrees are the same object.
+     */
+    Arith(Nodes shared) {
+        this();
+        nodes = shared;
+    }
+
     class SimpleNode implements Node {
         String type, key, val;
+        int hash;
+        long id; // set by Nodes, which compares children by it
 
         SimpleNode(String t, Token k) {
-            type=t; key=k.type; val=k.text;
+            this(t,k.type,k.text());
+        }
+        SimpleNode(String t, String k, String v) {
+            type=t; key=k; val=v;
+            // as Objects.hash(t,key,val), without its varargs array
+            hash = 31*(31*(31 + Objects.hashCode(t)) + Objects.hashCode(key)) + Objects.hashCode(val);
         }
         SimpleNode(Token k) {
             this(k.type,k);
         }
         @Override
+        public int hashCode() {
+            return hash;
+        }
+        @Override
         public String toString() {
             return val != null ? val : type;
         }
@@ -34,22 +56,79 @@ class Arith {
 
         CompositeNode(String t, Token k, SimpleNode... c) {
             super(t,k); children=c;
+            for (SimpleNode n:c) hash = 31*hash + n.hash;
         }
         CompositeNode(Token k, SimpleNode... c) {
             this(k.type,k,c);
         }
+        CompositeNode(String t, String k, SimpleNode... c) {
+            super(t,k,null); children=c;
+            for (SimpleNode n:c) hash = 31*hash + n.hash;
+        }
+        @Override
+        public String toString() {
+            return Printer.compact(this);
+        }
+    }
+
+    /**
+     * A parenthesized expression that is parsed on first use, if lazy and
+     * parsing from an indexed TokenTable. A body is parsed by a fork of the
+     * parser that skipped it, so a handler can force one in the middle of
+     * a parse; the body's tokens keep the grammar version they were lexed for.
+     * A tree may be shared, so forcing is synchronized.
+     */
+    class LazyNode extends SimpleNode {
+        TokenSource body;
+        Parser<SimpleNode> parser;
+        SimpleNode tree;
+
+        LazyNode(Token k, TokenSource b, Parser<SimpleNode> p) {
+            super(k); body=b; parser=p;
+        }
+        synchronized SimpleNode force() {
+            if (tree == null) {
+                tree = strict(parser.fork().parse(body));
+                body = null;
+                parser = null;
+            }
+            return tree;
+        }
         @Override
         public String toString() {
-            String s = "(" + type;
-            for (SimpleNode n:children) s += " "+n.toString();
-            return s + ')';
+            return force().toString();
         }
     }
 
+    static SimpleNode strict(SimpleNode n) {
+        while (n instanceof LazyNode) n = ((LazyNode)n).force();
+        return n;
+    }
+
+    SimpleNode leaf(String t, Token k) {
+        return share(new SimpleNode(t,k));
+    }
+    SimpleNode node(String t, Token k, SimpleNode... c) {
+        return share(new CompositeNode(t,k,c));
+    }
+    SimpleNode node(Token k, SimpleNode... c) {
+        return node(k.type,k,c);
+    }
+    SimpleNode node(String t, String k, SimpleNode... c) {
+        return share(new CompositeNode(t,k,c));
+    }
+    SimpleNode leaf(String t, String k, String v) {
+        return share(new SimpleNode(t,k,v));
+    }
+
+    SimpleNode share(SimpleNode n) {
+        return nodes == null ? n : nodes.intern(n);
+    }
+
     static final int COMMA_PREC = 1;
 
     final void makeShellParser() {
-      parser.spec()
+      parser.spec().update(s -> s
         .Left(31, LeftIncDec, "++", "--" )
         .Left(31, LeftFuncCall, "(" )
         .Left(31, LeftIndex, "[" )
@@ -83,15 +162,21 @@ class Arith {
         .Null(0, NullParen, "(" )
 
         .Null(-1, NullConstant, NAME, NUMBER, STRING )
-        .Null(-1, NullError, ")", "]", ":", EOF );
+        .Null(-1, NullError, ")", "]", ":", EOF ));
     }
 
     NUD<SimpleNode> NullConstant = (p,token,bp) -> {
-        String type = token.type.equals(NAME) ? "name" : token.text;
-        return new SimpleNode(type,token);
+        String type = token.type.equals(NAME) ? "name" : token.text();
+        return leaf(type,token);
     };
 
     NUD<SimpleNode> NullParen = (p,token,bp) -> {
+        TokenSource body = lazy ? p.skipGroup() : null;
+        if (body != null) {
+            SimpleNode r = new LazyNode(token,body,p);
+            p.expect(")");
+            return r;
+        }
         SimpleNode r = p.parseUntil(bp);
         p.expect(")");
         return r;
@@ -99,79 +184,88 @@ class Arith {
 
     NUD<SimpleNode> NullPrefixOp = (p,token,bp) -> {
         SimpleNode r = p.parseUntil(bp);
-        return new CompositeNode(token,r);
+        return node(token,r);
     };
 
     NUD<SimpleNode> NullIncDec = (p,token,bp) -> {
-        SimpleNode right = p.parseUntil(bp);
+        SimpleNode right = strict(p.parseUntil(bp));
         if (!in( right.type, "name", "get" )) {
             throw new ParseError("Can't assign to "+right+" ("+token(right)+')');
         }
-        return new CompositeNode(token,right);
+        return node(token,right);
     };
 
     LED<SimpleNode> LeftIncDec = (p,token,left,rbp) -> {
+        left = strict(left);
         if (!in( left.type, "name", "get" )) {
             throw new ParseError("Can't assign to "+left+" ("+token(left)+')');
         }
-        return new CompositeNode("post"+token.type,token,left);
+        return node("post"+token.type,token,left);
     };
 
     LED<SimpleNode> LeftIndex = (p,token,left,unused) -> {
+        left = strict(left);
         if (!in( left.type, "name", "get" )) {
             throw new ParseError(left.toString()+" can't be indexed");
         }
         SimpleNode index = p.parseUntil(0);
         p.expect("]");
-        return new CompositeNode("get",token,left,index);
+        return node("get",token,left,index);
     };
 
     LED<SimpleNode> LeftTernary = (p,token,left,bp) -> {
         SimpleNode trueExpr = p.parseUntil(0);
         p.expect(":");
         SimpleNode falseExpr = p.parseUntil(bp);
-        SimpleNode[] children = { left, trueExpr, falseExpr };
-        return new CompositeNode(token,children);
+        return node(token,left,trueExpr,falseExpr);
     };
 
     LED<SimpleNode> LeftBinaryOp = (p,token,left,rbp) -> {
-        return new CompositeNode(token,left,p.parseUntil(rbp));
+        return node(token,left,p.parseUntil(rbp));
     };
 
     LED<SimpleNode> LeftAssign = (p,token,left,rbp) -> {
+        left = strict(left);
         if (!in( left.type, "name", "get" )) {
             throw new ParseError("Can't assign to "+left+" ("+token(left)+')');
         }
-        return new CompositeNode(token,left,p.parseUntil(rbp));
+        return node(token,left,p.parseUntil(rbp));
     };
 
     LED<SimpleNode> LeftComma = (p,token,left,rbp) -> {
-        SimpleNode r = p.parseUntil(rbp);
+        left = strict(left);
+        int mark = p.open();
         if (left.type.equals(",")) {
-            CompositeNode l = (CompositeNode)left;
-            l.children = append(l.children,r);
-            return left;
+            for (SimpleNode c : ((CompositeNode)left).children) p.push(c);
+        } else {
+            p.push(left);
         }
-        SimpleNode[] children = { left, r };
-        return new CompositeNode(token,children);
+        p.push(p.parseUntil(rbp));
+        while (p.atToken(",")) {
+            p.nextToken();
+            p.push(p.parseUntil(rbp));
+        }
+        return node(token,p.close(mark,SimpleNode[]::new));
     };
 
     LED<SimpleNode> LeftFuncCall = (p,token,left,unused) -> {
-        SimpleNode[] children = { left };
+        left = strict(left);
         if (!in( left.type, "name", "get" )) {
             throw new ParseError(left.toString()+" can't be called");
         }
+        int mark = p.open();
+        p.push(left);
         while (!p.atToken(")")) {
-            children = append(children, p.parseUntil(COMMA_PREC));
+            p.push(p.parseUntil(COMMA_PREC));
             if (p.atToken(",")) {
                 p.nextToken();
             }
         }
         p.expect(")");
-        return new CompositeNode("call",token,children);
+        return node("call",token,p.close(mark,SimpleNode[]::new));
     };
 
-    NUD<SimpleNode> NullError = (p,t,bp) -> {
+    NUD<SimpleNode> NullError = (NUD<SimpleNode> & Rejecting)(p,t,bp) -> {
         throw new ParseError(token(t)+" can't be used in prefix position");
     };
 
@@ -180,17 +274,11 @@ class Arith {
         return false;
     }
 
-    <T> T[] append(T[] a, T c) {
-        T[] b = Arrays.copyOf(a,a.length+1);
-        b[a.length] = c;
-        return b;
-    }
-
     String token(SimpleNode n) {
         return "<Token "+n.key+' '+n.val+'>';
     }
     String token(Token t) {
-        return "<Token "+t.type+' '+t.text+'>';
+        return "<Token "+t.type+' '+t.text()+'>';
     }
 
 }
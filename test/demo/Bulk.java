@@ -0,0 +1,193 @@
+package demo;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import io.Chars;
+import tdop.TokenTable;
+import tdop.Parser.ParseError;
+
+/**
+ * Parses every file under some directories with Arith parsers on a pool of
+ * threads, and reports throughput, errors, the slowest files and peak heap.
+ *
+ * usage: java demo.Bulk [-t threads] [-m] [-s slowest] [-x ext] path|@list ...
+ *
+ * A directory is walked for files ending in ext (default ".txt"); @list
+ * names a file listing one path per line. -m loads files through a memory
+ * mapping instead of reading them whole. Files are decoded as UTF-8;
+ * MB/s counts their bytes, and peak heap is the most heap in use at once,
+ * sampled every SAMPLE milliseconds while the workers run.
+ *
+ * It measures this tree's parser; pratt-parsing-demo/pp is a separate
+ * port, with its own Parser and regex tokenizer, that pp.Tests checks.
+ */
+public class Bulk {
+
+    static final int SAMPLE = 10;
+
+    public static void main(String... args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors(), slowest = 10;
+        boolean map = false;
+        String ext = ".txt";
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-t": threads = Integer.parseInt(args[++i]); break;
+                case "-s": slowest = Integer.parseInt(args[++i]); break;
+                case "-x": ext = args[++i]; break;
+                case "-m": map = true; break;
+                default: files(args[i], ext, files);
+            }
+        }
+        Stats s = run(files, threads, map, slowest);
+        s.print(System.out);
+    }
+
+    static void files(String arg, String ext, List<Path> files) throws IOException {
+        if (arg.startsWith("@")) {
+            for (String line : Files.readAllLines(Paths.get(arg.substring(1)))) {
+                if (!line.isBlank()) files.add(Paths.get(line.trim()));
+            }
+            return;
+        }
+        Path p = Paths.get(arg);
+        if (!Files.isDirectory(p)) {
+            files.add(p);
+            return;
+        }
+        try (Stream<Path> s = Files.walk(p)) {
+            s.filter(f -> Files.isRegularFile(f) && f.toString().endsWith(ext))
+             .sorted()
+             .forEach(files::add);
+        }
+    }
+
+    /** Totals for one worker, or all of them once merged. */
+    static class Stats {
+        long files, bytes, chars, tokens, errors, nanos;
+        long elapsed, peakHeap;
+        final int keep;
+        final PriorityQueue<Timed> slowest = new PriorityQueue<>();
+
+        Stats(int keep) { this.keep = keep; }
+
+        void record(Path file, long t) {
+            slowest.add(new Timed(file,t));
+            if (slowest.size() > keep) slowest.poll();
+        }
+
+        void add(Stats s) {
+            files += s.files; bytes += s.bytes; chars += s.chars; tokens += s.tokens;
+            errors += s.errors; nanos += s.nanos;
+            for (Timed t : s.slowest) record(t.file,t.nanos);
+        }
+
+        void print(PrintStream out) {
+            double seconds = elapsed / 1e9;
+            out.printf("files=%d errors=%d bytes=%d chars=%d tokens=%d%n", files, errors, bytes, chars, tokens);
+            out.printf("elapsed=%.3fs cpu=%.3fs%n", seconds, nanos / 1e9);
+            out.printf("%.1f files/s  %.2f MB/s  %.0f tokens/s%n",
+                files / seconds, bytes / seconds / (1 << 20), tokens / seconds);
+            out.printf("peak heap=%.1f MB%n", peakHeap / (double)(1 << 20));
+            List<Timed> a = new ArrayList<>(slowest);
+            a.sort(null);
+            if (!a.isEmpty()) out.println("slowest:");
+            for (int i = a.size()-1; i >= 0; i--) {
+                out.printf("  %10.3fms  %s%n", a.get(i).nanos / 1e6, a.get(i).file);
+            }
+        }
+    }
+
+    static class Timed implements Comparable<Timed> {
+        final Path file;
+        final long nanos;
+        Timed(Path f, long n) { file=f; nanos=n; }
+
+        @Override
+        public int compareTo(Timed t) {
+            return Long.compare(nanos,t.nanos);
+        }
+    }
+
+    static Stats run(List<Path> files, int threads, boolean map, int keep) throws InterruptedException {
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean b : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (b.getType() == MemoryType.HEAP) heap.add(b);
+        }
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Stats[] stats = new Stats[threads];
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            Stats s = stats[t] = new Stats(keep);
+            workers[t] = new Thread(() -> {
+                Arith arith = new Arith();
+                try {
+                    for (int i; (i = next.getAndIncrement()) < files.size() && failure.get() == null; ) {
+                        Path f = files.get(i);
+                        long t0 = System.nanoTime();
+                        s.bytes += Files.size(f);
+                        CharBuffer src = map ? Chars.map(f) : Chars.chars(f);
+                        s.chars += src.remaining();
+                        try {
+                            TokenTable table = arith.parser.lex(src);
+                            s.tokens += table.size();
+                            arith.parser.parse(table);
+                        }
+                        catch (ParseError e) {
+                            s.errors++;
+                        }
+                        long t1 = System.nanoTime();
+                        s.files++;
+                        s.nanos += t1-t0;
+                        s.record(f,t1-t0);
+                    }
+                }
+                catch (IOException e) {
+                    failure.compareAndSet(null,new UncheckedIOException(e));
+                }
+                catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null,e);
+                }
+            });
+            workers[t].start();
+        }
+        Stats all = new Stats(keep);
+        for (int t = 0; t < threads; t++) {
+            while (workers[t].isAlive()) {
+                // the pools' own peaks are reached at different times, so sum them at one
+                long used = 0;
+                for (MemoryPoolMXBean b : heap) used += b.getUsage().getUsed();
+                all.peakHeap = Math.max(all.peakHeap,used);
+                workers[t].join(SAMPLE);
+            }
+            all.add(stats[t]);
+        }
+        all.elapsed = System.nanoTime() - start;
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException) throw (RuntimeException)e;
+        if (e != null) throw (Error)e;
+        return all;
+    }
+
+}
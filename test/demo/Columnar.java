@@ -0,0 +1,412 @@
+package demo;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+
+import static tdop.TDOP.*;
+
+/**
+ * Evaluates an Arith expression over columns of rows, a batch at a time.
+ * Each operator node runs its own primitive loop per batch into its own
+ * scratch array, which the JIT can unroll and vectorize; only ** and calls
+ * like sqrt go through a function per element. For &&, || and ?: the operand
+ * that may be skipped is only evaluated if some row in the batch needs it,
+ * and then for every row of the batch: rows are not masked, so an operand
+ * must be safe to evaluate where its guard is false, as 1/0 and sqrt(-1)
+ * are, yielding Infinity and NaN.
+ * Comparisons and logical operators yield 1 or 0.
+ */
+class Columnar {
+
+    static final int BATCH = 1024;
+
+    final Op root;
+    final Map<String,Load> columns = new HashMap<>();
+
+    Columnar(Arith.SimpleNode expr) {
+        root = compile(expr);
+    }
+
+    /** Bind a column to a NAME; names the expression doesn't use are ignored. */
+    Columnar bind(String name, double[] column) {
+        Load c = columns.get(name);
+        if (c != null) c.doubles = column;
+        return this;
+    }
+    Columnar bind(String name, long[] column) {
+        Load c = columns.get(name);
+        if (c != null) c.longs = column;
+        return this;
+    }
+
+    /** Evaluate rows [0,rows) of the bound columns. */
+    double[] eval(int rows) {
+        double[] result = new double[rows];
+        for (int from = 0; from < rows; from += BATCH) {
+            int n = Math.min(BATCH,rows-from);
+            System.arraycopy(root.eval(from,n),0,result,from,n);
+        }
+        return result;
+    }
+
+    abstract static class Op {
+        final double[] out = new double[BATCH];
+        /** Compute rows [from,from+n) into out[0,n) and return out. */
+        abstract double[] eval(int from, int n);
+    }
+
+    Op compile(Arith.SimpleNode node) {
+        node = Arith.strict(node);
+        if (!(node instanceof Arith.CompositeNode)) {
+            if (node.key.equals(NUMBER)) return constant(number(node.val));
+            if (node.key.equals(NAME)) return columns.computeIfAbsent(node.val, k -> new Load(k));
+            throw new IllegalArgumentException("can't evaluate "+node);
+        }
+        Arith.SimpleNode[] c = ((Arith.CompositeNode)node).children;
+        switch (c.length) {
+            case 1: return unary(node.type, compile(c[0]));
+            case 2: return node.type.equals("call") ? call(node, c) : binary(node.type, compile(c[0]), compile(c[1]));
+            case 3: if (node.type.equals("?")) return ternary(compile(c[0]), compile(c[1]), compile(c[2]));
+                    if (node.type.equals("call")) return call(node, c);
+        }
+        throw new IllegalArgumentException("can't evaluate "+node);
+    }
+
+    Op call(Arith.SimpleNode node, Arith.SimpleNode[] c) {
+        Arith.SimpleNode f = Arith.strict(c[0]);
+        if (f instanceof Arith.CompositeNode || !f.key.equals(NAME)) {
+            throw new IllegalArgumentException("can't evaluate "+node);
+        }
+        String name = f.val;
+        if (c.length == 2) {
+            switch (name) {
+                case "abs": return unary(Math::abs, compile(c[1]));
+                case "sqrt": return unary(Math::sqrt, compile(c[1]));
+            }
+        } else {
+            switch (name) {
+                case "min": return binary(Math::min, compile(c[1]), compile(c[2]));
+                case "max": return binary(Math::max, compile(c[1]), compile(c[2]));
+                case "pow": return binary(Math::pow, compile(c[1]), compile(c[2]));
+            }
+        }
+        throw new IllegalArgumentException("can't evaluate "+name+" with "+(c.length-1)+" arguments");
+    }
+
+    static class Load extends Op {
+        Load(String n) { name=n; }
+        final String name;
+        double[] doubles;
+        long[] longs;
+
+        @Override
+        double[] eval(int from, int n) {
+            if (doubles != null) {
+                System.arraycopy(doubles,from,out,0,n);
+            } else if (longs != null) {
+                long[] a = longs;
+                for (int i = 0; i < n; i++) out[i] = a[from+i];
+            } else {
+                throw new IllegalStateException("column "+name+" is not bound");
+            }
+            return out;
+        }
+    }
+
+    static Op constant(double v) {
+        Op op = new Op() {
+            @Override
+            double[] eval(int from, int n) { return out; }
+        };
+        Arrays.fill(op.out,v);
+        return op;
+    }
+
+    interface F1 { double f(double a); }
+    interface F2 { double f(double a, double b); }
+
+    static Op unary(String type, Op a) {
+        switch (type) {
+            case "+": return a;
+            case "-": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = -x[i];
+                    return r;
+                }
+            };
+            case "!": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] == 0 ? 1 : 0;
+                    return r;
+                }
+            };
+            case "~": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = ~(long)x[i];
+                    return r;
+                }
+            };
+        }
+        return unary(f1(type), a);
+    }
+
+    /** The scalar function of a prefix operator. */
+    static F1 f1(String type) {
+        switch (type) {
+            case "+": return x -> x;
+            case "-": return x -> -x;
+            case "!": return x -> x == 0 ? 1 : 0;
+            case "~": return x -> ~(long)x;
+        }
+        throw new IllegalArgumentException("can't evaluate "+type);
+    }
+
+    static Op unary(F1 f, Op a) {
+        return new Op() {
+            @Override
+            double[] eval(int from, int n) {
+                double[] x = a.eval(from,n), r = out;
+                for (int i = 0; i < n; i++) r[i] = f.f(x[i]);
+                return r;
+            }
+        };
+    }
+
+    static Op binary(String type, Op a, Op b) {
+        switch (type) {
+            case "+": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] + y[i];
+                    return r;
+                }
+            };
+            case "-": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] - y[i];
+                    return r;
+                }
+            };
+            case "*": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] * y[i];
+                    return r;
+                }
+            };
+            case "/": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] / y[i];
+                    return r;
+                }
+            };
+            case "%": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] % y[i];
+                    return r;
+                }
+            };
+            case "<": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] < y[i] ? 1 : 0;
+                    return r;
+                }
+            };
+            case ">": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] > y[i] ? 1 : 0;
+                    return r;
+                }
+            };
+            case "<=": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] <= y[i] ? 1 : 0;
+                    return r;
+                }
+            };
+            case ">=": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] >= y[i] ? 1 : 0;
+                    return r;
+                }
+            };
+            case "==": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] == y[i] ? 1 : 0;
+                    return r;
+                }
+            };
+            case "!=": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = x[i] != y[i] ? 1 : 0;
+                    return r;
+                }
+            };
+            case "&": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = (long)x[i] & (long)y[i];
+                    return r;
+                }
+            };
+            case "|": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = (long)x[i] | (long)y[i];
+                    return r;
+                }
+            };
+            case "^": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = (long)x[i] ^ (long)y[i];
+                    return r;
+                }
+            };
+            case "<<": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = (long)x[i] << (long)y[i];
+                    return r;
+                }
+            };
+            case ">>": return new Op() {
+                @Override
+                double[] eval(int from, int n) {
+                    double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                    for (int i = 0; i < n; i++) r[i] = (long)x[i] >> (long)y[i];
+                    return r;
+                }
+            };
+            case "&&": return logical(a, b, false);
+            case "||": return logical(a, b, true);
+        }
+        return binary(f2(type), a, b);
+    }
+
+    /** The scalar function of a binary operator. */
+    static F2 f2(String type) {
+        switch (type) {
+            case "+":  return (x,y) -> x + y;
+            case "-":  return (x,y) -> x - y;
+            case "*":  return (x,y) -> x * y;
+            case "/":  return (x,y) -> x / y;
+            case "%":  return (x,y) -> x % y;
+            case "**": return Math::pow;
+            case "<":  return (x,y) -> x < y ? 1 : 0;
+            case ">":  return (x,y) -> x > y ? 1 : 0;
+            case "<=": return (x,y) -> x <= y ? 1 : 0;
+            case ">=": return (x,y) -> x >= y ? 1 : 0;
+            case "==": return (x,y) -> x == y ? 1 : 0;
+            case "!=": return (x,y) -> x != y ? 1 : 0;
+            case "&":  return (x,y) -> (long)x & (long)y;
+            case "|":  return (x,y) -> (long)x | (long)y;
+            case "^":  return (x,y) -> (long)x ^ (long)y;
+            case "<<": return (x,y) -> (long)x << (long)y;
+            case ">>": return (x,y) -> (long)x >> (long)y;
+            case "&&": return (x,y) -> x != 0 && y != 0 ? 1 : 0;
+            case "||": return (x,y) -> x != 0 || y != 0 ? 1 : 0;
+        }
+        throw new IllegalArgumentException("can't evaluate "+type);
+    }
+
+    static Op binary(F2 f, Op a, Op b) {
+        return new Op() {
+            @Override
+            double[] eval(int from, int n) {
+                double[] x = a.eval(from,n), y = b.eval(from,n), r = out;
+                for (int i = 0; i < n; i++) r[i] = f.f(x[i],y[i]);
+                return r;
+            }
+        };
+    }
+
+    /** a && b, or a || b if or; b is skipped if a decides every row. */
+    static Op logical(Op a, Op b, boolean or) {
+        return new Op() {
+            @Override
+            double[] eval(int from, int n) {
+                double[] x = a.eval(from,n), r = out;
+                int decided = 0;
+                for (int i = 0; i < n; i++) {
+                    boolean t = x[i] != 0;
+                    r[i] = t ? 1 : 0;
+                    decided += t == or ? 1 : 0;
+                }
+                if (decided < n) {
+                    double[] y = b.eval(from,n);
+                    if (or) for (int i = 0; i < n; i++) r[i] = r[i] != 0 || y[i] != 0 ? 1 : 0;
+                    else    for (int i = 0; i < n; i++) r[i] = r[i] != 0 && y[i] != 0 ? 1 : 0;
+                }
+                return r;
+            }
+        };
+    }
+
+    /** c ? a : b; a branch is skipped if no row selects it. */
+    static Op ternary(Op c, Op a, Op b) {
+        return new Op() {
+            @Override
+            double[] eval(int from, int n) {
+                double[] m = c.eval(from,n), r = out;
+                int taken = 0;
+                for (int i = 0; i < n; i++) taken += m[i] != 0 ? 1 : 0;
+                double[] x = taken > 0 ? a.eval(from,n) : null;
+                double[] y = taken < n ? b.eval(from,n) : null;
+                if (x == null) System.arraycopy(y,0,r,0,n);
+                else if (y == null) System.arraycopy(x,0,r,0,n);
+                else for (int i = 0; i < n; i++) r[i] = m[i] != 0 ? x[i] : y[i];
+                return r;
+            }
+        };
+    }
+
+    /** Parse a NUMBER token's text, e.g. 1_000, 0x1F, 0b101, 2.5f, 10L. */
+    static double number(String s) {
+        s = s.replace("_","");
+        if (s.length() > 2 && s.charAt(0) == '0') {
+            switch (s.charAt(1)) {
+                case 'x': case 'X': return Long.parseLong(strip(s.substring(2)),16);
+                case 'b': case 'B': return Long.parseLong(strip(s.substring(2)),2);
+            }
+        }
+        return Double.parseDouble(strip(s));
+    }
+
+    static String strip(String s) {
+        char c = s.charAt(s.length()-1);
+        return c == 'l' || c == 'L' ? s.substring(0,s.length()-1) : s;
+    }
+
+}
@@ -0,0 +1,222 @@
+package demo;
+
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.GarbageCollectorMXBean;
+
+import tdop.Parser.ParseError;
+
+/**
+ * Replays a corpus through Arith parsers at a fixed arrival rate and
+ * reports parse latency percentiles by input size and thread count.
+ *
+ * usage: java demo.Latency [corpus|-] [rate/s] [seconds] [threads,...]
+ *
+ * The corpus has one expression per line; '-' generates one.
+ * Latency is measured from each request's scheduled start, not its
+ * actual start, so a stalled thread is charged for the requests it
+ * delayed (coordinated omission).
+ */
+public class Latency {
+
+    public static void main(String... args) throws Exception {
+        String corpus = args.length > 0 ? args[0] : "-";
+        long rate = args.length > 1 ? Long.parseLong(args[1]) : 20_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String threads = args.length > 3 ? args[3] : "1,2,4";
+
+        char[][] inputs = corpus.equals("-") ? generate(4096, new Random(1)) : load(corpus);
+        System.out.println("inputs="+inputs.length+" rate="+rate+"/s seconds="+seconds);
+
+        run(inputs, 1, rate, Math.max(1,seconds/5), false); // warm up
+        for (String t : threads.split(",")) {
+            run(inputs, Integer.parseInt(t.trim()), rate, seconds, true);
+        }
+    }
+
+    static final int[] SIZES = { 64, 256, 1024, 4096, Integer.MAX_VALUE };
+
+    static int bucket(int length) {
+        int b = 0;
+        while (length >= SIZES[b]) b++;
+        return b;
+    }
+
+    static void run(char[][] inputs, int threads, long rate, int seconds, boolean report) throws InterruptedException {
+        long interval = threads * 1_000_000_000L / rate;
+        long gcCount = gcCount(), gcTime = gcTime();
+        Histogram[][] h = new Histogram[threads][SIZES.length];
+        long[] errors = new long[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        long start = System.nanoTime() + 10_000_000;
+        long end = start + seconds * 1_000_000_000L;
+
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            for (int b = 0; b < SIZES.length; b++) h[t][b] = new Histogram();
+            Thread w = new Thread(() -> {
+                try {
+                    Arith arith = new Arith();
+                    int next = id;
+                    for (long due = start + id * interval / threads; due < end && failure.get() == null; due += interval) {
+                        long now;
+                        while ((now = System.nanoTime()) < due) {
+                            LockSupport.parkNanos(due-now);
+                        }
+                        char[] src = inputs[next];
+                        next = (next+threads) % inputs.length;
+                        try {
+                            arith.parser.parse(CharBuffer.wrap(src));
+                        }
+                        catch (ParseError e) {
+                            errors[id]++;
+                        }
+                        h[id][bucket(src.length)].record(System.nanoTime()-due);
+                    }
+                }
+                catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null,e);
+                }
+                finally {
+                    done.countDown();
+                }
+            });
+            w.setDaemon(true);
+            w.start();
+        }
+        done.await();
+        Throwable f = failure.get();
+        if (f instanceof RuntimeException) throw (RuntimeException)f;
+        if (f != null) throw (Error)f;
+        if (!report) return;
+
+        long n = 0, e = 0;
+        Histogram all = new Histogram();
+        Histogram[] sizes = new Histogram[SIZES.length];
+        for (int b = 0; b < SIZES.length; b++) {
+            sizes[b] = new Histogram();
+            for (int t = 0; t < threads; t++) sizes[b].add(h[t][b]);
+            all.add(sizes[b]);
+        }
+        for (long x : errors) e += x;
+        System.out.printf("%nthreads=%d parsed=%d errors=%d gc=%d (%dms)%n",
+            threads, all.total, e, gcCount()-gcCount, gcTime()-gcTime);
+        System.out.printf("  %-8s %9s %9s %9s %9s %9s %9s  (us)%n", "size","count","p50","p90","p99","p999","max");
+        for (int b = 0; b < SIZES.length; b++) {
+            String label = b == SIZES.length-1 ? ">="+SIZES[b-1] : "<"+SIZES[b];
+            print(label, sizes[b]);
+        }
+        print("all", all);
+    }
+
+    static void print(String label, Histogram h) {
+        if (h.total == 0) return;
+        System.out.printf("  %-8s %9d %9.1f %9.1f %9.1f %9.1f %9.1f%n", label, h.total,
+            h.percentile(50)/1e3, h.percentile(90)/1e3, h.percentile(99)/1e3,
+            h.percentile(99.9)/1e3, h.max/1e3);
+    }
+
+    static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean b : ManagementFactory.getGarbageCollectorMXBeans()) n += b.getCollectionCount();
+        return n;
+    }
+    static long gcTime() {
+        long n = 0;
+        for (GarbageCollectorMXBean b : ManagementFactory.getGarbageCollectorMXBeans()) n += b.getCollectionTime();
+        return n;
+    }
+
+    static char[][] load(String filename) throws Exception {
+        List<char[]> a = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(filename))) {
+            if (!line.isBlank()) a.add(line.toCharArray());
+        }
+        return a.toArray(new char[a.size()][]);
+    }
+
+    static final String[] OPS = { "+", "-", "*", "/", "%", "<<", "&&", "||", "==", "<" };
+
+    static char[][] generate(int count, Random r) {
+        char[][] a = new char[count][];
+        for (int i = 0; i < count; i++) {
+            StringBuilder s = new StringBuilder();
+            expr(s, r, 1 + r.nextInt(12));
+            a[i] = s.toString().toCharArray();
+        }
+        return a;
+    }
+
+    static void expr(StringBuilder s, Random r, int depth) {
+        if (depth == 0) {
+            if (r.nextBoolean()) s.append((char)('a'+r.nextInt(26))).append(r.nextInt(100));
+            else s.append(r.nextInt(1000));
+            return;
+        }
+        switch (r.nextInt(4)) {
+            case 0: s.append('('); expr(s,r,depth-1); s.append(')'); break;
+            case 1: s.append("f("); expr(s,r,depth-1); s.append(','); expr(s,r,depth-1); s.append(')'); break;
+            default: expr(s,r,depth-1); s.append(' ').append(OPS[r.nextInt(OPS.length)]).append(' '); expr(s,r,depth-1);
+        }
+    }
+
+    /**
+     * A log-linear latency histogram in the style of HdrHistogram:
+     * 2^SUB buckets per power of two, so values are kept to within 1%.
+     */
+    static class Histogram {
+        static final int SUB = 7;
+
+        final long[] counts = new long[(64-SUB) << SUB];
+        long total, max;
+
+        void record(long v) {
+            if (v < 0) v = 0;
+            counts[index(v)]++;
+            total++;
+            if (v > max) max = v;
+        }
+
+        void add(Histogram h) {
+            for (int i = 0; i < counts.length; i++) counts[i] += h.counts[i];
+            total += h.total;
+            max = Math.max(max,h.max);
+        }
+
+        long percentile(double p) {
+            long rank = (long)Math.ceil(p / 100 * total), n = 0;
+            for (int i = 0; i < counts.length; i++) {
+                n += counts[i];
+                if (n >= rank && n > 0) return Math.min(highest(i),max);
+            }
+            return max;
+        }
+
+        static int index(long v) {
+            if (v < (1L << SUB)) return (int)v;
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            int b = e - SUB + 1;
+            int sub = (int)(v >>> (b-1)) & ((1 << SUB)-1);
+            return (b << SUB) + sub;
+        }
+
+        static long highest(int i) {
+            int b = i >>> SUB, sub = i & ((1 << SUB)-1);
+            if (b == 0) return sub;
+            return (((1L << SUB) + sub + 1) << (b-1)) - 1;
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package demo;
+
+import java.nio.CharBuffer;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import tdop.DFA;
+import tdop.TDOP;
+
+import static tdop.TDOP.*;
+
+/**
+ * Times the DFA lexer against the regex tokenizer of the pp port,
+ * pp.TDOP.tokenRE, compiled from the same four token classes.
+ *
+ * usage: java demo.Lexers [tokens] [rounds]
+ *
+ * tokenRE takes the first alternative that matches and the DFA the longest
+ * match, so the two agree except where digits run into letters: tokenRE
+ * splits 12ab into 12 and ab. The generated corpus keeps them apart.
+ */
+public class Lexers {
+
+    public static void main(String... args) {
+        int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Lexers lexers = new Lexers();
+        String src = corpus(tokens, new Random(1));
+        if (!lexers.dfa(src).equals(regex(src))) throw new AssertionError("the lexers disagree");
+        System.out.println("tokens="+tokens+" chars="+src.length());
+
+        long dfa = Long.MAX_VALUE, re = Long.MAX_VALUE;
+        for (int r = 0; r < rounds; r++) {
+            long t0 = System.nanoTime();
+            int n = lexers.count(src);
+            long t1 = System.nanoTime();
+            int m = count(TOKEN_RE.matcher(src));
+            long t2 = System.nanoTime();
+            if (n != m) throw new AssertionError(n+" != "+m);
+            dfa = Math.min(dfa,t1-t0);
+            re = Math.min(re,t2-t1);
+        }
+        System.out.printf("dfa   %6.1f ns/token%n", (double)dfa/tokens);
+        System.out.printf("regex %6.1f ns/token%n", (double)re/tokens);
+    }
+
+    /** pp.TDOP.tokenRE, a NUMBER, a NAME, a run of operator chars or a bracket. */
+    static final Pattern TOKEN_RE = Pattern.compile(
+        "\\s*(?:(\\d+)|(\\w+)|([\\-\\+\\*/%!~<>=&^|?:,]+)|([\\(\\)\\[\\]]))");
+
+    static final String[] TYPES = { NUMBER, NAME, "OP", "BRACKET" };
+
+    final DFA dfa;
+
+    Lexers() {
+        Parser<Node> p = newParser();
+        p.spec().Null(-1, (q,t,bp) -> null, "OP", "BRACKET");
+        dfa = new DFA.Rules()
+            .rule(NUMBER, "\\d+", 1) // tokenRE tries it before \w+
+            .rule(NAME, "\\w+")
+            .rule("OP", "[\\-\\+\\*/%!~<>=&^|?:,]+")
+            .rule("BRACKET", "[\\(\\)\\[\\]]")
+            .skip("\\s+")
+            .compile(p);
+    }
+
+    /** The tokens of src by tokenRE, as type and text. */
+    static List<String> regex(String src) {
+        List<String> tokens = new ArrayList<>();
+        Matcher m = TOKEN_RE.matcher(src);
+        while (m.lookingAt()) {
+            for (int g = 1; g <= TYPES.length; g++) {
+                if (m.group(g) != null) tokens.add(TYPES[g-1]+" "+m.group(g));
+            }
+            m.region(m.end(),src.length());
+        }
+        return tokens;
+    }
+
+    /** The tokens of src by the DFA, as type and text. */
+    List<String> dfa(String src) {
+        List<String> tokens = new ArrayList<>();
+        TokenSource s = dfa.scan(CharBuffer.wrap(src.toCharArray()));
+        while (s.hasNext()) {
+            Token t = s.next();
+            tokens.add(t.type+" "+t.text);
+        }
+        return tokens;
+    }
+
+    int count(String src) {
+        int n = 0;
+        TokenSource s = dfa.scan(CharBuffer.wrap(src.toCharArray()));
+        for (; s.hasNext(); n++) s.next();
+        return n;
+    }
+
+    static int count(Matcher m) {
+        int n = 0;
+        for (; m.lookingAt(); n++) {
+            for (int g = 1; g <= TYPES.length; g++) {
+                if (m.start(g) >= 0) {
+                    m.group(g);
+                    break;
+                }
+            }
+            m.region(m.end(),m.regionEnd());
+        }
+        return n;
+    }
+
+    static final String[] OPS = { "+", "-", "*", "/", "%", "<<", ">=", "==", "&&", "||", "?", ":", ",", "!", "-~" };
+
+    /** tokens tokens of expression-like text, with no digit next to a letter. */
+    static String corpus(int tokens, Random r) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            switch (r.nextInt(4)) {
+                case 0: b.append(r.nextInt(100000)); break;
+                case 1: b.append((char)('a'+r.nextInt(26))).append(r.nextBoolean() ? "_x" : "y2"); break;
+                case 2: b.append(OPS[r.nextInt(OPS.length)]); break;
+                case 3: b.append("()[]".charAt(r.nextInt(4))); break;
+            }
+            b.append(r.nextInt(8) == 0 ? "\n" : " ");
+        }
+        return b.toString();
+    }
+
+}
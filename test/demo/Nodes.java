@@ -0,0 +1,97 @@
+package demo;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import java.util.Arrays;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hash-consing table for Arith nodes.
+ * Nodes are keyed on (type, token type, token text, child identities),
+ * so once children are shared an equal node is found by one probe.
+ * The table holds its nodes weakly and may be shared across threads.
+ * A key names its children by id, not by reference, so a dropped tree
+ * is collected at once rather than a level per collection.
+ */
+class Nodes {
+
+    final ConcurrentHashMap<Shape,Ref> table = new ConcurrentHashMap<>();
+    final ReferenceQueue<Arith.SimpleNode> queue = new ReferenceQueue<>();
+
+    static final AtomicLong ids = new AtomicLong();
+
+    static final class Shape {
+        Shape(Arith.SimpleNode n) {
+            type=n.type; key=n.key; val=n.val; hash=n.hash;
+            if (n instanceof Arith.CompositeNode) {
+                Arith.SimpleNode[] c = ((Arith.CompositeNode)n).children;
+                children = new long[c.length];
+                for (int i = 0; i < c.length; i++) children[i] = id(c[i]);
+            } else {
+                children = null;
+            }
+        }
+        final String type, key, val;
+        final long[] children; // ids
+        final int hash;
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Shape)) return false;
+            Shape s = (Shape)o;
+            if (hash != s.hash || !type.equals(s.type) || !key.equals(s.key)) return false;
+            if (val == null ? s.val != null : !val.equals(s.val)) return false;
+            if (children == null || s.children == null) return children == s.children;
+            return Arrays.equals(children,s.children);
+        }
+    }
+
+    static final class Ref extends WeakReference<Arith.SimpleNode> {
+        Ref(Arith.SimpleNode n, Shape s, ReferenceQueue<Arith.SimpleNode> q) {
+            super(n,q); shape=s;
+        }
+        final Shape shape;
+    }
+
+    /** The id of n, giving it one if it has none, e.g. a LazyNode. */
+    static long id(Arith.SimpleNode n) {
+        if (n.id == 0) n.id = ids.incrementAndGet();
+        return n.id;
+    }
+
+    /** Return the shared node equal to n, adding n if there is none. */
+    Arith.SimpleNode intern(Arith.SimpleNode n) {
+        purge();
+        Shape s = new Shape(n);
+        for (;;) {
+            Ref r = table.get(s);
+            if (r == null) {
+                id(n); // before other threads can see n
+                r = table.putIfAbsent(s, new Ref(n,s,queue));
+                if (r == null) return n;
+            }
+            Arith.SimpleNode m = r.get();
+            if (m != null) return m;
+            table.remove(s,r);
+        }
+    }
+
+    int size() {
+        purge();
+        return table.size();
+    }
+
+    void purge() {
+        for (Object r; (r = queue.poll()) != null; ) {
+            table.remove(((Ref)r).shape,r);
+        }
+    }
+
+}
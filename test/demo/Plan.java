@@ -0,0 +1,222 @@
+package demo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+import static tdop.TDOP.*;
+
+/**
+ * Fuses a batch of Arith formulas into one linear plan over double registers.
+ *
+ * Subexpressions are value-numbered across the whole batch, so a subtree
+ * that occurs in many formulas, or many times in one, is one instruction;
+ * the operands of commutative operators are put in order first, so b*a
+ * is a*b. Instructions are in post order, each after its operands, and
+ * registers are reused once their last reader has run. A plan runs once
+ * per record, or once per batch of rows with each instruction a loop.
+ * Every operand is evaluated, including both arms of ?: and the right
+ * side of && and ||.
+ */
+class Plan {
+
+    static final int BATCH = 256;
+    static final int CONST = 0, LOAD = 1, F1 = 2, F2 = 3, SELECT = 4;
+
+    final List<String> inputs = new ArrayList<>();
+    final Map<String,Integer> inputIndex = new HashMap<>();
+    final Map<List<Object>,Integer> numbers = new HashMap<>();
+    final List<Double> constants = new ArrayList<>();
+    final Map<Double,Integer> constantIndex = new HashMap<>();
+
+    // instruction i computes value i into register dst[i]
+    int size;
+    int[] op = new int[16], a = new int[16], b = new int[16], c = new int[16], dst;
+    Columnar.F1[] f1 = new Columnar.F1[16];
+    Columnar.F2[] f2 = new Columnar.F2[16];
+    final int[] results;
+    int registers;
+
+    Plan(List<Arith.SimpleNode> formulas) {
+        results = new int[formulas.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = value(formulas.get(i));
+        }
+        allocate();
+    }
+
+    /** The number of instructions, one per distinct subexpression. */
+    int size() {
+        return size;
+    }
+
+    /** The index of the input NAME in a record, or -1 if no formula uses it. */
+    int input(String name) {
+        return inputIndex.getOrDefault(name,-1);
+    }
+
+    /** Evaluate one record, with a value for each input in order; one result per formula. */
+    double[] eval(double[] record) {
+        double[] r = new double[registers];
+        for (int i = 0; i < size; i++) {
+            switch (op[i]) {
+                case CONST:  r[dst[i]] = constants.get(a[i]); break;
+                case LOAD:   r[dst[i]] = record[a[i]]; break;
+                case F1:     r[dst[i]] = f1[i].f(r[dst[a[i]]]); break;
+                case F2:     r[dst[i]] = f2[i].f(r[dst[a[i]]],r[dst[b[i]]]); break;
+                case SELECT: r[dst[i]] = r[dst[a[i]]] != 0 ? r[dst[b[i]]] : r[dst[c[i]]]; break;
+            }
+        }
+        double[] out = new double[results.length];
+        for (int j = 0; j < out.length; j++) out[j] = r[dst[results[j]]];
+        return out;
+    }
+
+    /** Evaluate rows [0,rows) of a column per input; one column of results per formula. */
+    double[][] eval(double[][] columns, int rows) {
+        double[][] r = new double[registers][BATCH];
+        double[][] out = new double[results.length][rows];
+        for (int from = 0; from < rows; from += BATCH) {
+            int n = Math.min(BATCH,rows-from);
+            for (int i = 0; i < size; i++) {
+                double[] d = r[dst[i]];
+                switch (op[i]) {
+                    case CONST:
+                        Arrays.fill(d,0,n,constants.get(a[i]));
+                        break;
+                    case LOAD:
+                        System.arraycopy(columns[a[i]],from,d,0,n);
+                        break;
+                    case F1: {
+                        Columnar.F1 f = f1[i];
+                        double[] x = r[dst[a[i]]];
+                        for (int k = 0; k < n; k++) d[k] = f.f(x[k]);
+                        break;
+                    }
+                    case F2: {
+                        Columnar.F2 f = f2[i];
+                        double[] x = r[dst[a[i]]], y = r[dst[b[i]]];
+                        for (int k = 0; k < n; k++) d[k] = f.f(x[k],y[k]);
+                        break;
+                    }
+                    case SELECT: {
+                        double[] m = r[dst[a[i]]], x = r[dst[b[i]]], y = r[dst[c[i]]];
+                        for (int k = 0; k < n; k++) d[k] = m[k] != 0 ? x[k] : y[k];
+                        break;
+                    }
+                }
+            }
+            for (int j = 0; j < results.length; j++) {
+                System.arraycopy(r[dst[results[j]]],0,out[j],from,n);
+            }
+        }
+        return out;
+    }
+
+    static final String COMMUTATIVE = " + * == != & | ^ && || ";
+
+    /** Number the value of node, adding instructions for what's new. */
+    int value(Arith.SimpleNode node) {
+        node = Arith.strict(node);
+        if (!(node instanceof Arith.CompositeNode)) {
+            if (node.key.equals(NUMBER)) {
+                double v = Columnar.number(node.val);
+                int k = constantIndex.computeIfAbsent(v, x -> {
+                    constants.add(x);
+                    return constants.size()-1;
+                });
+                return emit(List.of(CONST,k), CONST, k, 0, 0, null, null);
+            }
+            if (node.key.equals(NAME)) {
+                int k = inputIndex.computeIfAbsent(node.val, x -> {
+                    inputs.add(x);
+                    return inputs.size()-1;
+                });
+                return emit(List.of(LOAD,k), LOAD, k, 0, 0, null, null);
+            }
+            throw new IllegalArgumentException("can't evaluate "+node);
+        }
+        Arith.SimpleNode[] ch = ((Arith.CompositeNode)node).children;
+        String type = node.type;
+        if (type.equals("call")) {
+            Arith.SimpleNode callee = Arith.strict(ch[0]);
+            if (callee instanceof Arith.CompositeNode || !callee.key.equals(NAME)) {
+                throw new IllegalArgumentException("can't evaluate "+node);
+            }
+            String name = callee.val;
+            if (ch.length == 2 && (name.equals("abs") || name.equals("sqrt"))) {
+                int x = value(ch[1]);
+                return emit(List.of(name,x), F1, x, 0, 0, name.equals("abs") ? Math::abs : Math::sqrt, null);
+            }
+            if (ch.length == 3 && (name.equals("min") || name.equals("max") || name.equals("pow"))) {
+                int x = value(ch[1]), y = value(ch[2]);
+                Columnar.F2 f = name.equals("min") ? Math::min : name.equals("max") ? Math::max : Math::pow;
+                return emit(List.of(name,x,y), F2, x, y, 0, null, f);
+            }
+            throw new IllegalArgumentException("can't evaluate "+name+" with "+(ch.length-1)+" arguments");
+        }
+        switch (ch.length) {
+            case 1: {
+                int x = value(ch[0]);
+                return type.equals("+") ? x : emit(List.of(type,x), F1, x, 0, 0, Columnar.f1(type), null);
+            }
+            case 2: {
+                int x = value(ch[0]), y = value(ch[1]);
+                if (x > y && COMMUTATIVE.contains(" "+type+" ")) {
+                    int t = x; x = y; y = t;
+                }
+                return emit(List.of(type,x,y), F2, x, y, 0, null, Columnar.f2(type));
+            }
+            case 3:
+                if (type.equals("?")) {
+                    int m = value(ch[0]), x = value(ch[1]), y = value(ch[2]);
+                    return emit(List.of(type,m,x,y), SELECT, m, x, y, null, null);
+                }
+        }
+        throw new IllegalArgumentException("can't evaluate "+node);
+    }
+
+    int emit(List<Object> key, int code, int x, int y, int z, Columnar.F1 g1, Columnar.F2 g2) {
+        Integer v = numbers.get(key);
+        if (v != null) return v;
+        if (size == op.length) {
+            int n = size*2;
+            op = Arrays.copyOf(op,n); a = Arrays.copyOf(a,n); b = Arrays.copyOf(b,n); c = Arrays.copyOf(c,n);
+            f1 = Arrays.copyOf(f1,n); f2 = Arrays.copyOf(f2,n);
+        }
+        op[size] = code; a[size] = x; b[size] = y; c[size] = z;
+        f1[size] = g1; f2[size] = g2;
+        numbers.put(key,size);
+        return size++;
+    }
+
+    /** Assign registers, freeing each at the last instruction that reads it. */
+    void allocate() {
+        int[] last = new int[size];
+        for (int i = 0; i < size; i++) {
+            last[i] = i;
+            int arity = op[i] == SELECT ? 3 : op[i] == F2 ? 2 : op[i] == F1 ? 1 : 0;
+            if (arity > 2) last[c[i]] = i;
+            if (arity > 1) last[b[i]] = i;
+            if (arity > 0) last[a[i]] = i;
+        }
+        for (int r : results) last[r] = size;
+        dst = new int[size];
+        int[] free = new int[size];
+        int nfree = 0;
+        List<List<Integer>> dying = new ArrayList<>();
+        for (int i = 0; i < size; i++) dying.add(new ArrayList<>());
+        for (int i = 0; i < size; i++) {
+            if (last[i] < size && last[i] > i) dying.get(last[i]).add(i);
+        }
+        for (int i = 0; i < size; i++) {
+            // operands dying here are freed after dst[i] is chosen, so i never overwrites them
+            dst[i] = nfree > 0 ? free[--nfree] : registers++;
+            for (int v : dying.get(i)) free[nfree++] = dst[v];
+            if (last[i] == i) free[nfree++] = dst[i];
+        }
+    }
+
+}
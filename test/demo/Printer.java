@@ -0,0 +1,75 @@
+package demo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.Arrays;
+
+/**
+ * Writes Arith trees as S-expressions to an Appendable.
+ * The walk keeps its own stack, so deep trees don't overflow the
+ * call stack, and output goes straight to the Appendable in one pass.
+ * Indented output puts each child on its own line.
+ */
+class Printer {
+
+    final Appendable out;
+    final boolean indent;
+
+    Arith.CompositeNode[] nodes = new Arith.CompositeNode[32];
+    int[] next = new int[32];
+    int depth;
+
+    Printer(Appendable out, boolean indent) {
+        this.out = out; this.indent = indent;
+    }
+
+    static String compact(Arith.SimpleNode n) {
+        StringBuilder s = new StringBuilder();
+        new Printer(s,false).print(n);
+        return s.toString();
+    }
+
+    Printer print(Arith.SimpleNode root) {
+        try {
+            depth = 0;
+            write(root);
+            while (depth > 0) {
+                Arith.CompositeNode n = nodes[depth-1];
+                int i = next[depth-1]++;
+                if (i == n.children.length) {
+                    nodes[--depth] = null;
+                    out.append(')');
+                    continue;
+                }
+                if (indent) {
+                    out.append('\n');
+                    for (int d = 0; d < depth; d++) out.append("  ");
+                } else {
+                    out.append(' ');
+                }
+                write(n.children[i]);
+            }
+            return this;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void write(Arith.SimpleNode n) throws IOException {
+        n = Arith.strict(n);
+        if (!(n instanceof Arith.CompositeNode)) {
+            out.append(n.toString());
+            return;
+        }
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes,depth*2);
+            next = Arrays.copyOf(next,depth*2);
+        }
+        nodes[depth] = (Arith.CompositeNode)n;
+        next[depth++] = 0;
+        out.append('(').append(n.type);
+    }
+
+}
@@ -0,0 +1,287 @@
+package demo;
+
+import java.nio.CharBuffer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static tdop.TDOP.*;
+
+/**
+ * Keeps the values of a program of Arith assignments, e.g. x = y*3 + 1
+ * or a ^= b-1, up to date as its inputs change.
+ *
+ * Each assignment's reads and write are found when it is parsed. A variable
+ * assigned more than once gets a new value per assignment, and a read refers
+ * to the last assignment before it, or to an input if there is none; so the
+ * program order is a topological order of the dependency graph. recalc()
+ * reruns only the formulas downstream of the inputs that changed: in
+ * program order if there are few of them, otherwise on a fork-join pool,
+ * each formula running once all the formulas it reads have run.
+ * Values are computed as in Columnar.
+ */
+class Recalc {
+
+    final ForkJoinPool pool;
+    int parallel = 256; // the fewest formulas worth running in parallel
+
+    final Map<String,Integer> inputs = new HashMap<>();   // name -> slot
+    final Map<String,Integer> current = new HashMap<>();  // name -> slot of its last value
+    final List<Formula> formulas = new ArrayList<>();
+    final List<int[]> readers = new ArrayList<>();        // input slot -> formulas
+    double[] values = new double[16];
+    int slots;
+    final BitSet changed = new BitSet();                   // input slots
+
+    interface Fn { double eval(double[] values); }
+
+    class Formula {
+        Formula(int i, String n, int s, Fn f, int[] p, int[] r) {
+            index=i; name=n; slot=s; fn=f; producers=p; inputs=r;
+        }
+        final int index;
+        final String name;
+        final int slot;
+        final Fn fn;
+        final int[] producers; // the formulas it reads, once each
+        final int[] inputs;    // the input slots it reads
+        int[] dependents = new int[0];
+        final AtomicInteger pending = new AtomicInteger();
+
+        void run() {
+            values[slot] = fn.eval(values);
+        }
+    }
+
+    Recalc(Arith arith, String... program) {
+        this(arith, ForkJoinPool.commonPool(), program);
+    }
+
+    Recalc(Arith arith, ForkJoinPool pool, String... program) {
+        this.pool = pool;
+        for (String line : program) {
+            add(arith.parser.parse(CharBuffer.wrap(line.toCharArray())));
+        }
+    }
+
+    static final String[] ASSIGN = { "=", "+=", "-=", "*=", "/=", "%=", "<<=", ">>=", "&=", "^=", "|=" };
+
+    void add(Arith.SimpleNode tree) {
+        tree = Arith.strict(tree);
+        if (!(tree instanceof Arith.CompositeNode) || !Arrays.asList(ASSIGN).contains(tree.type)
+                || !((Arith.CompositeNode)tree).children[0].type.equals("name")) {
+            throw new IllegalArgumentException("not an assignment to a name: "+tree);
+        }
+        Arith.SimpleNode[] c = ((Arith.CompositeNode)tree).children;
+        String name = c[0].val;
+        BitSet reads = new BitSet();
+        Fn f = compile(c[1], reads);
+        if (!tree.type.equals("=")) {
+            Fn g = f, old = compile(c[0], reads);
+            Columnar.F2 op = Columnar.f2(tree.type.substring(0,tree.type.length()-1));
+            f = v -> op.f(old.eval(v),g.eval(v));
+        }
+        int index = formulas.size();
+        BitSet producers = new BitSet(), in = new BitSet();
+        for (int s = reads.nextSetBit(0); s >= 0; s = reads.nextSetBit(s+1)) {
+            Formula p = producer(s);
+            if (p != null) producers.set(p.index);
+            else in.set(s);
+        }
+        Formula formula = new Formula(index, name, slot(), f, producers.stream().toArray(), in.stream().toArray());
+        formulas.add(formula);
+        for (int p : formula.producers) {
+            Formula q = formulas.get(p);
+            q.dependents = Arrays.copyOf(q.dependents,q.dependents.length+1);
+            q.dependents[q.dependents.length-1] = index;
+        }
+        for (int s : formula.inputs) {
+            int[] r = readers.get(s);
+            r = Arrays.copyOf(r,r.length+1);
+            r[r.length-1] = index;
+            readers.set(s,r);
+        }
+        current.put(name,formula.slot);
+        bySlot.put(formula.slot,formula);
+        changed.set(formula.slot); // it has never run
+    }
+
+    final Map<Integer,Formula> bySlot = new HashMap<>();
+
+    /** The formula whose value is in slot, or null for an input. */
+    Formula producer(int slot) {
+        return bySlot.get(slot);
+    }
+
+    int slot() {
+        if (slots == values.length) values = Arrays.copyOf(values,slots*2);
+        readers.add(new int[0]);
+        return slots++;
+    }
+
+    Fn compile(Arith.SimpleNode n, BitSet reads) {
+        n = Arith.strict(n);
+        if (!(n instanceof Arith.CompositeNode)) {
+            if (n.key.equals(NUMBER)) {
+                double v = Columnar.number(n.val);
+                return x -> v;
+            }
+            if (n.key.equals(NAME)) {
+                Integer s = current.get(n.val);
+                if (s == null) {
+                    s = inputs.computeIfAbsent(n.val, k -> slot());
+                }
+                int slot = s;
+                reads.set(slot);
+                return x -> x[slot];
+            }
+            throw new IllegalArgumentException("can't evaluate "+n);
+        }
+        Arith.SimpleNode[] c = ((Arith.CompositeNode)n).children;
+        if (n.type.equals("call")) return call(n, c, reads);
+        switch (c.length) {
+            case 1: {
+                Columnar.F1 f = Columnar.f1(n.type);
+                Fn a = compile(c[0],reads);
+                return x -> f.f(a.eval(x));
+            }
+            case 2: {
+                Fn a = compile(c[0],reads), b = compile(c[1],reads);
+                switch (n.type) {
+                    case "&&": return x -> a.eval(x) != 0 && b.eval(x) != 0 ? 1 : 0;
+                    case "||": return x -> a.eval(x) != 0 || b.eval(x) != 0 ? 1 : 0;
+                }
+                Columnar.F2 f = Columnar.f2(n.type);
+                return x -> f.f(a.eval(x),b.eval(x));
+            }
+            case 3: if (n.type.equals("?")) {
+                Fn t = compile(c[0],reads), a = compile(c[1],reads), b = compile(c[2],reads);
+                return x -> t.eval(x) != 0 ? a.eval(x) : b.eval(x);
+            }
+        }
+        throw new IllegalArgumentException("can't evaluate "+n);
+    }
+
+    Fn call(Arith.SimpleNode n, Arith.SimpleNode[] c, BitSet reads) {
+        Arith.SimpleNode f = Arith.strict(c[0]);
+        if (f instanceof Arith.CompositeNode || !f.key.equals(NAME)) {
+            throw new IllegalArgumentException("can't evaluate "+n);
+        }
+        String name = f.val;
+        if (c.length == 2) {
+            Fn a = compile(c[1],reads);
+            switch (name) {
+                case "abs": return x -> Math.abs(a.eval(x));
+                case "sqrt": return x -> Math.sqrt(a.eval(x));
+            }
+        } else if (c.length == 3) {
+            Fn a = compile(c[1],reads), b = compile(c[2],reads);
+            switch (name) {
+                case "min": return x -> Math.min(a.eval(x),b.eval(x));
+                case "max": return x -> Math.max(a.eval(x),b.eval(x));
+                case "pow": return x -> Math.pow(a.eval(x),b.eval(x));
+            }
+        }
+        throw new IllegalArgumentException("can't evaluate "+name+" with "+(c.length-1)+" arguments");
+    }
+
+    /** Set an input; formulas see it at the next recalc(). */
+    Recalc set(String name, double value) {
+        Integer s = inputs.get(name);
+        if (s == null) {
+            throw new IllegalArgumentException("no input "+name);
+        }
+        if (values[s] != value || Double.isNaN(value)) {
+            values[s] = value;
+            changed.set(s);
+        }
+        return this;
+    }
+
+    /** The last value assigned to a name, or an input's value. */
+    double get(String name) {
+        Integer s = current.get(name);
+        if (s == null) s = inputs.get(name);
+        if (s == null) {
+            throw new IllegalArgumentException("no variable "+name);
+        }
+        return values[s];
+    }
+
+    /** Rerun the formulas downstream of the changed inputs; returns how many ran. */
+    int recalc() {
+        BitSet dirty = new BitSet(formulas.size());
+        for (int s = changed.nextSetBit(0); s >= 0; s = changed.nextSetBit(s+1)) {
+            Formula f = producer(s);
+            if (f != null) dirty.set(f.index); // a formula added since the last recalc
+            else for (int r : readers.get(s)) dirty.set(r);
+        }
+        changed.clear();
+        // program order is topological, so one forward sweep closes the set
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i+1)) {
+            for (int d : formulas.get(i).dependents) dirty.set(d);
+        }
+        int n = dirty.cardinality();
+        if (n < parallel) {
+            for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i+1)) {
+                formulas.get(i).run();
+            }
+            return n;
+        }
+        List<Formula> sources = new ArrayList<>();
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i+1)) {
+            Formula f = formulas.get(i);
+            int pending = 0;
+            for (int p : f.producers) if (dirty.get(p)) pending++;
+            f.pending.set(pending);
+            if (pending == 0) sources.add(f);
+        }
+        pool.invoke(new Root(n, sources, dirty));
+        return n;
+    }
+
+    // completes when all n formula tasks have
+    class Root extends CountedCompleter<Void> {
+        Root(int n, List<Formula> s, BitSet d) {
+            setPendingCount(n); sources=s; dirty=d;
+        }
+        private static final long serialVersionUID = 1L;
+        final List<Formula> sources;
+        final BitSet dirty;
+
+        @Override
+        public void compute() {
+            for (Formula f : sources) new Task(this,f).fork();
+            tryComplete();
+        }
+    }
+
+    class Task extends CountedCompleter<Void> {
+        Task(Root r, Formula f) {
+            super(r); root=r; formula=f;
+        }
+        private static final long serialVersionUID = 1L;
+        final Root root;
+        final Formula formula;
+
+        @Override
+        public void compute() {
+            formula.run();
+            for (int d : formula.dependents) {
+                if (root.dirty.get(d) && formulas.get(d).pending.decrementAndGet() == 0) {
+                    new Task(root,formulas.get(d)).fork();
+                }
+            }
+            tryComplete();
+        }
+    }
+
+}
@@ -0,0 +1,302 @@
+package demo;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.function.Function;
+
+import static tdop.TDOP.*;
+
+/**
+ * Rewrites Arith trees with rules written as S-expression patterns:
+ *
+ *   (op p ...)  a node of that type with those children
+ *   ?x          any subtree, bound to x; a repeated ?x must match an equal subtree
+ *   #x          any NUMBER, bound to x
+ *   $x          any NAME or NUMBER, bound to x; a template may copy it freely
+ *   2           a NUMBER of that value, e.g. 2, 2.0 or 0x2
+ *   x           the NAME x
+ *
+ * A template is written the same way, or a rule's action computes the
+ * replacement from the bindings and may return null to decline.
+ *
+ * All patterns are compiled into one decision tree, a trie over their
+ * preorder walk, so a node is matched against every rule at once.
+ * At a node, more specific patterns are tried before #x, then $x, then ?x, and rules
+ * with the same pattern in the order added. Trees are rewritten in one
+ * bottom-up pass: each node's children are normalized first, then rules
+ * are applied at the node until none matches. Shared subtrees are
+ * normalized once.
+ */
+class Rewriter {
+
+    static final int LIMIT = 10_000; // rewrites at one node before we give up
+
+    final Arith arith;
+    final State start = new State();
+    Arith.SimpleNode[] seen = new Arith.SimpleNode[16]; // the subtree at each step
+    final Map<Arith.SimpleNode,Arith.SimpleNode> normal = new IdentityHashMap<>();
+
+    // a pattern or template; an atom has no kids
+    static class Pat {
+        Pat(String a, Pat[] k) { atom=a; kids=k; }
+        final String atom;
+        final Pat[] kids;
+    }
+
+    // a state of the decision tree, after some steps of a preorder walk
+    static class State {
+        final Map<String,State[]> nodes = new HashMap<>(); // by type, then arity
+        final Map<Double,State> numbers = new HashMap<>();
+        final Map<String,State> names = new HashMap<>();
+        State number, leaf, any;
+        final List<Rule> rules = new ArrayList<>();
+    }
+
+    static class Rule {
+        Rule(String[] v, Function<Map<String,Arith.SimpleNode>,Arith.SimpleNode> a) {
+            vars=v; action=a;
+        }
+        final String[] vars; // the variable bound at each step, or null
+        final Function<Map<String,Arith.SimpleNode>,Arith.SimpleNode> action;
+    }
+
+    Rewriter(Arith arith) {
+        this.arith = arith;
+    }
+
+    Rewriter rule(String pattern, String template) {
+        Pat t = read(template);
+        return rule(pattern, b -> build(t,b));
+    }
+
+    Rewriter rule(String pattern, Function<Map<String,Arith.SimpleNode>,Arith.SimpleNode> action) {
+        List<String> vars = new ArrayList<>();
+        State s = compile(start, read(pattern), vars);
+        s.rules.add(new Rule(vars.toArray(new String[vars.size()]), action));
+        normal.clear();
+        return this;
+    }
+
+    /** Extend the trie with the preorder walk of p; vars gets each step's variable. */
+    State compile(State s, Pat p, List<String> vars) {
+        if (p.kids != null) {
+            State[] a = s.nodes.computeIfAbsent(p.atom, k -> new State[p.kids.length+1]);
+            if (a.length <= p.kids.length) {
+                s.nodes.put(p.atom, a = Arrays.copyOf(a,p.kids.length+1));
+            }
+            if (a[p.kids.length] == null) a[p.kids.length] = new State();
+            s = a[p.kids.length];
+            vars.add(null);
+            for (Pat k : p.kids) s = compile(s,k,vars);
+            return s;
+        }
+        char c = p.atom.charAt(0);
+        if (c == '?' || c == '#' || c == '$') {
+            vars.add(p.atom.substring(1));
+            if (c == '?') return s.any != null ? s.any : (s.any = new State());
+            if (c == '$') return s.leaf != null ? s.leaf : (s.leaf = new State());
+            return s.number != null ? s.number : (s.number = new State());
+        }
+        vars.add(null);
+        if (Character.isDigit(c) || c == '.') {
+            return s.numbers.computeIfAbsent(Columnar.number(p.atom), k -> new State());
+        }
+        return s.names.computeIfAbsent(p.atom, k -> new State());
+    }
+
+    /** Rewrite a tree with the rules to a fixpoint. */
+    Arith.SimpleNode rewrite(Arith.SimpleNode tree) {
+        try {
+            return normalize(tree);
+        }
+        finally {
+            normal.clear();
+        }
+    }
+
+    Arith.SimpleNode normalize(Arith.SimpleNode n) {
+        n = Arith.strict(n);
+        Arith.SimpleNode m = normal.get(n);
+        if (m != null) return m;
+        m = children(n);
+        for (int i = 0; ; i++) {
+            Arith.SimpleNode r = match(start, new Pending(m,null), 0);
+            if (r == null) break;
+            if (i == LIMIT) {
+                throw new IllegalStateException("rules don't terminate at "+n);
+            }
+            m = children(r);
+        }
+        normal.put(n,m);
+        normal.put(m,m);
+        return m;
+    }
+
+    /** n with its children normalized. */
+    Arith.SimpleNode children(Arith.SimpleNode n) {
+        if (!(n instanceof Arith.CompositeNode)) return n;
+        Arith.SimpleNode[] c = ((Arith.CompositeNode)n).children, d = null;
+        for (int i = 0; i < c.length; i++) {
+            Arith.SimpleNode k = normalize(c[i]);
+            if (k != c[i]) {
+                if (d == null) d = c.clone();
+                d[i] = k;
+            }
+        }
+        return d == null ? n : arith.node(n.type,n.key,d);
+    }
+
+    // the subtrees still to be walked, as a list that backtracking can share
+    static final class Pending {
+        Pending(Arith.SimpleNode n, Pending r) { node=n; rest=r; }
+        final Arith.SimpleNode node;
+        final Pending rest;
+    }
+
+    /** Walk the trie from s over the pending subtrees and fire the first rule that accepts. */
+    Arith.SimpleNode match(State s, Pending todo, int step) {
+        if (todo == null) {
+            for (Rule r : s.rules) {
+                Arith.SimpleNode out = fire(r);
+                if (out != null) return out;
+            }
+            return null;
+        }
+        Arith.SimpleNode n = todo.node, out;
+        if (step == seen.length) seen = Arrays.copyOf(seen,step*2);
+        seen[step] = n;
+        if (n instanceof Arith.CompositeNode) {
+            Arith.SimpleNode[] c = ((Arith.CompositeNode)n).children;
+            State[] a = s.nodes.get(n.type);
+            if (a != null && c.length < a.length && a[c.length] != null) {
+                Pending p = todo.rest;
+                for (int i = c.length-1; i >= 0; i--) p = new Pending(c[i],p);
+                if ((out = match(a[c.length],p,step+1)) != null) return out;
+            }
+        } else if (n.key.equals(NUMBER)) {
+            State t = s.numbers.isEmpty() ? null : s.numbers.get(Columnar.number(n.val));
+            if (t != null && (out = match(t,todo.rest,step+1)) != null) return out;
+            if (s.number != null && (out = match(s.number,todo.rest,step+1)) != null) return out;
+            if (s.leaf != null && (out = match(s.leaf,todo.rest,step+1)) != null) return out;
+        } else if (n.key.equals(NAME)) {
+            State t = s.names.get(n.val);
+            if (t != null && (out = match(t,todo.rest,step+1)) != null) return out;
+            if (s.leaf != null && (out = match(s.leaf,todo.rest,step+1)) != null) return out;
+        }
+        if (s.any != null) {
+            return match(s.any,todo.rest,step+1);
+        }
+        return null;
+    }
+
+    Arith.SimpleNode fire(Rule r) {
+        Map<String,Arith.SimpleNode> b = new HashMap<>();
+        for (int i = 0; i < r.vars.length; i++) {
+            if (r.vars[i] == null) continue;
+            Arith.SimpleNode old = b.putIfAbsent(r.vars[i],seen[i]);
+            if (old != null && !same(old,seen[i])) return null;
+        }
+        return r.action.apply(b);
+    }
+
+    static boolean same(Arith.SimpleNode a, Arith.SimpleNode b) {
+        if (a == b) return true;
+        if (a.hash != b.hash || !a.type.equals(b.type) || !a.key.equals(b.key)) return false;
+        if (a.val == null ? b.val != null : !a.val.equals(b.val)) return false;
+        if (!(a instanceof Arith.CompositeNode) || !(b instanceof Arith.CompositeNode)) {
+            return !(a instanceof Arith.CompositeNode) && !(b instanceof Arith.CompositeNode);
+        }
+        Arith.SimpleNode[] x = ((Arith.CompositeNode)a).children, y = ((Arith.CompositeNode)b).children;
+        if (x.length != y.length) return false;
+        for (int i = 0; i < x.length; i++) {
+            if (!same(x[i],y[i])) return false;
+        }
+        return true;
+    }
+
+    Arith.SimpleNode build(Pat t, Map<String,Arith.SimpleNode> b) {
+        if (t.kids != null) {
+            Arith.SimpleNode[] c = new Arith.SimpleNode[t.kids.length];
+            for (int i = 0; i < c.length; i++) c[i] = build(t.kids[i],b);
+            return arith.node(t.atom,t.atom,c);
+        }
+        char c = t.atom.charAt(0);
+        if (c == '?' || c == '#' || c == '$') return b.get(t.atom.substring(1));
+        if (Character.isDigit(c) || c == '.') return number(Columnar.number(t.atom));
+        return arith.leaf("name",NAME,t.atom);
+    }
+
+    Arith.SimpleNode number(double v) {
+        String s = v == Math.rint(v) && Math.abs(v) < 0x1p53 ? Long.toString((long)v) : Double.toString(v);
+        return arith.leaf(s,NUMBER,s);
+    }
+
+    static Pat read(String s) {
+        List<String> tokens = new ArrayList<>();
+        for (String t : s.replace("(", " ( ").replace(")", " ) ").trim().split("\\s+")) tokens.add(t);
+        int[] next = { 0 };
+        Pat p = read(tokens,next);
+        if (next[0] != tokens.size()) {
+            throw new IllegalArgumentException("trailing input in pattern "+s);
+        }
+        return p;
+    }
+
+    static Pat read(List<String> tokens, int[] next) {
+        String t = tokens.get(next[0]++);
+        if (!t.equals("(")) return new Pat(t,null);
+        String op = tokens.get(next[0]++);
+        List<Pat> kids = new ArrayList<>();
+        while (!tokens.get(next[0]).equals(")")) kids.add(read(tokens,next));
+        next[0]++;
+        return new Pat(op,kids.toArray(new Pat[kids.size()]));
+    }
+
+    /**
+     * Constant folding, identities, !!x and strength reduction,
+     * with the value semantics of Columnar. Strength reduction copies
+     * only leaves, so it never repeats a call or a side effect.
+     */
+    static Rewriter simplifier(Arith a) {
+        Rewriter r = new Rewriter(a);
+        for (String op : new String[] { "+", "-", "*", "/", "%", "**", "<", ">", "<=", ">=", "==", "!=",
+                                        "&", "|", "^", "<<", ">>", "&&", "||" }) {
+            Columnar.F2 f = Columnar.f2(op);
+            r.rule("("+op+" #x #y)", b -> r.fold(f.f(value(b.get("x")), value(b.get("y")))));
+        }
+        for (String op : new String[] { "-", "!", "~" }) {
+            Columnar.F1 f = Columnar.f1(op);
+            r.rule("("+op+" #x)", b -> r.fold(f.f(value(b.get("x")))));
+        }
+        return r
+            .rule("(+ ?x)", "?x")
+            .rule("(+ ?x 0)", "?x")
+            .rule("(+ 0 ?x)", "?x")
+            .rule("(- ?x 0)", "?x")
+            .rule("(- 0 ?x)", "(- ?x)")
+            .rule("(- (- ?x))", "?x")
+            .rule("(* ?x 1)", "?x")
+            .rule("(* 1 ?x)", "?x")
+            .rule("(/ ?x 1)", "?x")
+            .rule("(** ?x 1)", "?x")
+            .rule("(! (! ?x))", "(!= ?x 0)")
+            .rule("(* $x 2)", "(+ $x $x)")
+            .rule("(* 2 $x)", "(+ $x $x)")
+            .rule("(** $x 2)", "(* $x $x)")
+            .rule("(/ ?x 2)", "(* ?x 0.5)");
+    }
+
+    static double value(Arith.SimpleNode n) {
+        return Columnar.number(n.val);
+    }
+
+    /** A NUMBER for v, or null if v isn't a finite number. */
+    Arith.SimpleNode fold(double v) {
+        return Double.isFinite(v) ? number(v) : null;
+    }
+
+}
@@ -0,0 +1,324 @@
+package demo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import tdop.TDOP;
+
+import static java.nio.channels.SelectionKey.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static tdop.TDOP.*;
+
+/**
+ * A parse service on a TCP or Unix-domain socket.
+ *
+ * usage: java demo.Service [port|path] [threads]
+ *
+ * serves Arith on a loopback port (default 7070) or a Unix-domain socket path.
+ * A request is a 4-byte big-endian length and that many bytes of UTF-8 source.
+ * A response is a 4-byte length, then 'T' and the printed tree or 'E' and
+ * the error message, in UTF-8. Responses come back in request order.
+ *
+ * One selector thread does all socket I/O. Requests that arrive together on
+ * a connection are parsed as one batch by a worker holding one of the shared
+ * parser sessions, while the connection goes on reading. A connection stops
+ * reading while its response buffer is over HIGH_WATER, and a client that
+ * stops reading responses is not sent more work. Buffers grown for a large
+ * request or batch of responses shrink back to BUFFER once drained.
+ *
+ * Each session parser runs under Limits, by default limits(): a request
+ * that nests too deeply or parses too long gets an error response, and
+ * the worker goes on to the next one.
+ */
+public class Service<N extends Node> implements Runnable, Closeable {
+
+    public static final int MAX_REQUEST = 1 << 24;
+    static final int BUFFER = 8192;
+    static final int HIGH_WATER = 1 << 16;
+    static final int DEPTH = 1000;
+    static final long DEADLINE_MS = 1000;
+
+    /** The default budget of a request. */
+    public static Limits limits() {
+        return new Limits().depth(DEPTH).length(MAX_REQUEST).deadline(DEADLINE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static void main(String... args) throws IOException {
+        String at = args.length > 0 ? args[0] : "7070";
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        SocketAddress address = at.chars().allMatch(Character::isDigit)
+            ? new InetSocketAddress(InetAddress.getLoopbackAddress(),Integer.parseInt(at))
+            : UnixDomainSocketAddress.of(Paths.get(at));
+        try (Service<Arith.SimpleNode> service = new Service<>(address, () -> new Arith().parser, Object::toString, threads)) {
+            System.out.println("serving on "+service.address());
+            service.run();
+        }
+    }
+
+    final ServerSocketChannel server;
+    final Selector selector;
+    final ExecutorService workers;
+    final BlockingQueue<TDOP.Parser<N>> sessions;
+    final Function<N,String> printer;
+    final Queue<Connection> done = new ConcurrentLinkedQueue<>();
+    volatile boolean closed;
+
+    public Service(SocketAddress address, Supplier<TDOP.Parser<N>> grammar, Function<N,String> printer, int threads) throws IOException {
+        this(address, grammar, printer, threads, limits());
+    }
+
+    /** A service whose session parsers run under limits, or none if null. */
+    public Service(SocketAddress address, Supplier<TDOP.Parser<N>> grammar, Function<N,String> printer, int threads, Limits limits) throws IOException {
+        server = address instanceof UnixDomainSocketAddress
+               ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+               : ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        selector = Selector.open();
+        server.register(selector,OP_ACCEPT);
+        sessions = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            TDOP.Parser<N> parser = grammar.get();
+            parser.limit(limits);
+            sessions.add(parser);
+        }
+        workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r,"tdop-service");
+            t.setDaemon(true);
+            return t;
+        });
+        this.printer = printer;
+    }
+
+    public SocketAddress address() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                for (Connection c; (c = done.poll()) != null; ) {
+                    c.resume();
+                }
+                for (SelectionKey k : selector.selectedKeys()) {
+                    if (!k.isValid()) continue;
+                    if (k.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Service<?>.Connection c = (Service<?>.Connection)k.attachment();
+                    if (k.isReadable()) c.read();
+                    if (k.isValid() && k.isWritable()) c.write();
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            shutdown();
+        }
+    }
+
+    /** Stop the service; run() closes the sockets and returns. */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        workers.shutdown();
+        try {
+            for (SelectionKey k : selector.keys()) {
+                k.channel().close();
+            }
+            selector.close();
+        }
+        catch (IOException ignore) {}
+    }
+
+    void accept() throws IOException {
+        SocketChannel s = server.accept();
+        if (s == null) return;
+        s.configureBlocking(false);
+        new Connection(s);
+    }
+
+    class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+
+        ByteBuffer in = ByteBuffer.allocate(BUFFER);  // filling
+        ByteBuffer out = ByteBuffer.allocate(BUFFER); // filling
+        final List<CharBuffer> batch = new ArrayList<>();
+        byte[][] responses;
+        boolean busy, eof;
+
+        Connection(SocketChannel s) throws IOException {
+            channel = s;
+            key = s.register(selector,OP_READ,this);
+        }
+
+        void read() throws IOException {
+            try {
+                if (channel.read(in) < 0) eof = true;
+                dispatch();
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        void write() throws IOException {
+            try {
+                out.flip();
+                channel.write(out);
+                out.compact();
+                if (out.position() == 0) out = trim(out);
+                dispatch();
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        /** Hand the complete requests in the buffer to a worker, if it's our turn. */
+        void dispatch() throws IOException {
+            if (!busy && out.position() < HIGH_WATER) {
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < 0 || length > MAX_REQUEST) {
+                        close();
+                        return;
+                    }
+                    if (in.remaining() < 4+length) {
+                        if (in.capacity() < 4+length) {
+                            in = ByteBuffer.allocate(4+length).put(in);
+                            in.flip();
+                        }
+                        break;
+                    }
+                    in.position(in.position()+4);
+                    ByteBuffer request = in.slice().limit(length);
+                    batch.add(UTF_8.decode(request));
+                    in.position(in.position()+length);
+                }
+                in.compact();
+                if (in.position() < 4) in = trim(in);
+                if (!batch.isEmpty()) {
+                    busy = true;
+                    workers.execute(this::parse);
+                }
+            }
+            if (eof && !busy && out.position() == 0) {
+                close();
+                return;
+            }
+            int ops = 0;
+            if (!eof && in.hasRemaining() && out.position() < HIGH_WATER) ops |= OP_READ;
+            if (out.position() > 0) ops |= OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        /** Parse a batch; runs on a worker thread. */
+        void parse() {
+            byte[][] r = new byte[batch.size()][];
+            TDOP.Parser<N> parser = null;
+            String unanswered = "Eservice failed";
+            try {
+                parser = sessions.take();
+                for (int i = 0; i < r.length; i++) {
+                    String reply;
+                    try {
+                        reply = 'T' + printer.apply(parser.parse(batch.get(i)));
+                    }
+                    catch (RuntimeException e) {
+                        // a ParseError, or a Parser.LimitError
+                        reply = 'E' + String.valueOf(e.getMessage());
+                    }
+                    catch (StackOverflowError e) {
+                        reply = "Enested too deeply";
+                    }
+                    r[i] = reply.getBytes(UTF_8);
+                }
+            }
+            catch (InterruptedException e) {
+                unanswered = "Eservice closed";
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                // every request gets a response, so later ones stay in order
+                for (int i = 0; i < r.length; i++) {
+                    if (r[i] == null) r[i] = unanswered.getBytes(UTF_8);
+                }
+                if (parser != null) sessions.add(parser);
+                responses = r;
+                done.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /** Queue the responses of a finished batch; runs on the selector thread. */
+        void resume() throws IOException {
+            if (!key.isValid()) return;
+            for (byte[] b : responses) {
+                if (out.remaining() < 4+b.length) {
+                    ByteBuffer o = ByteBuffer.allocate(Math.max(out.capacity()*2,out.position()+4+b.length));
+                    out.flip();
+                    out = o.put(out);
+                }
+                out.putInt(b.length).put(b);
+            }
+            responses = null;
+            batch.clear();
+            busy = false;
+            dispatch();
+        }
+
+        void close() throws IOException {
+            key.cancel();
+            channel.close();
+        }
+    }
+
+    /** b, or a BUFFER-sized copy of its contents if it has grown past that. */
+    static ByteBuffer trim(ByteBuffer b) {
+        if (b.capacity() <= BUFFER) return b;
+        b.flip();
+        return ByteBuffer.allocate(BUFFER).put(b);
+    }
+
+}
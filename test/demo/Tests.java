@@ -1,12 +1,59 @@
 package demo;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import tdop.DFA;
+import tdop.Feeder;
+import tdop.GrammarProcessor;
+import tdop.Pipeline;
+import tdop.Symbols;
+import tdop.Tokenizer;
+import tdop.TokenTable;
+import tdop.TDOP.Token;
+import tdop.Parser.LimitError;
 import tdop.Parser.ParseError;
 
+import static tdop.TDOP.*;
+
 public class Tests {
 
     static Arith arith;
@@ -117,6 +164,148 @@ public class Tests {
         t_parse("++x - ++y", "(- (++ x) (++ y))");
     }
 
+    @Test
+    public void testLookahead() {
+        Arith a = new Arith();
+        a.parser.spec()
+          .Null(0, (p,token,bp) -> {
+              if (p.atToken(NAME) && p.peek(1).type.equals(")") && p.peek(2).type.equals("=>")) {
+                  Arith.SimpleNode param = a.new SimpleNode("name",p.peek(0));
+                  p.nextToken(); p.nextToken(); p.nextToken();
+                  return a.new CompositeNode("lambda",token,param,p.parseUntil(bp));
+              }
+              return a.NullParen.nud(p,token,bp);
+          }, "(" )
+          .Null(-1, a.NullError, "=>" );
+        String[][] cases = {
+            { "(x) => x+1", "(lambda x (+ x 1))" },
+            { "(x) + 1", "(+ x 1)" },
+            { "(x)", "x" },
+        };
+        for (String[] c : cases) {
+            String sexpr = a.parser.parse(CharBuffer.wrap(c[0].toCharArray())).toString();
+            if (!sexpr.equals(c[1])) {
+                throw new AssertionError(sexpr+" != "+c[1]);
+            }
+            System.out.println(c[0]+" -> "+sexpr);
+        }
+    }
+
+    @Test
+    public void testBacktracking() {
+        Arith a = new Arith();
+        a.parser.spec()
+          .Null(0, (p,token,bp) -> {
+              if (p.atToken(NAME)) {
+                  Mark m = p.mark();
+                  Arith.SimpleNode type = a.new SimpleNode("name",p.peek(0));
+                  p.nextToken();
+                  try {
+                      p.expect(")");
+                      return a.new CompositeNode("cast",token,type,p.parseUntil(29));
+                  }
+                  catch (ParseError e) {
+                      p.reset(m);
+                  }
+              }
+              return a.NullParen.nud(p,token,bp);
+          }, "(" );
+        String[][] cases = {
+            { "(int) x", "(cast int x)" },
+            { "(int) (x) * y", "(* (cast int x) y)" },
+            { "(x) * y", "(* x y)" },
+            { "(x)", "x" },
+            { "(a) (b) (c) * d", "(* (cast a (cast b c)) d)" },
+        };
+        for (boolean memoize : new boolean[] { false, true }) {
+            a.parser.memoize(memoize);
+            for (String[] c : cases) {
+                String sexpr = a.parser.parse(CharBuffer.wrap(c[0].toCharArray())).toString();
+                if (!sexpr.equals(c[1])) {
+                    throw new AssertionError(sexpr+" != "+c[1]);
+                }
+                System.out.println(c[0]+" -> "+sexpr);
+            }
+        }
+    }
+
+    @Test
+    public void testMemoStack() {
+        Arith a = new Arith();
+        a.parser.spec()
+          .Null(0, (p,token,bp) -> {
+              int mark = p.open();
+              Mark m = p.mark();
+              try {
+                  p.push(p.parseUntil(bp));
+                  p.expect(";");
+              }
+              catch (ParseError e) {
+                  p.reset(m);
+                  p.push(a.new SimpleNode("alt",token));
+                  p.push(p.parseUntil(bp));
+              }
+              return a.new CompositeNode("at",token,p.close(mark,Arith.SimpleNode[]::new));
+          }, "@" )
+          .Null(-1, a.NullError, ";" );
+        String[][] cases = {
+            { "@ x+1", "(at alt (+ x 1))" },
+            { "@ x+1;", "(at (+ x 1))" },
+            { "f(@ @ y;)", "(call f (at alt (at y)))" },
+        };
+        for (boolean memoize : new boolean[] { false, true }) {
+            a.parser.memoize(memoize);
+            for (String[] c : cases) {
+                String sexpr = a.parser.parse(CharBuffer.wrap(c[0].toCharArray())).toString();
+                if (!sexpr.equals(c[1])) {
+                    throw new AssertionError("memoize "+memoize+": "+sexpr+" != "+c[1]);
+                }
+                System.out.println(c[0]+" -> "+sexpr);
+            }
+        }
+    }
+
+    @Test
+    public void testModes() {
+        Arith a = new Arith();
+        a.parser.spec()
+          .mode("template", SCAN_TEXT, "#", "${" )
+          .Null(-1, (p,token,bp) -> {
+              List<Arith.SimpleNode> parts = new ArrayList<>();
+              p.pushMode("template");
+              while (!p.atToken("#")) {
+                  if (p.atToken(TEXT)) {
+                      Arith.SimpleNode text = a.new SimpleNode("text",p.peek(0));
+                      text.val = '"'+text.val+'"';
+                      parts.add(text);
+                      p.nextToken();
+                  } else {
+                      p.expect("${");
+                      p.pushMode("");
+                      parts.add(p.parseUntil(0));
+                      p.expect("}");
+                      p.popMode();
+                  }
+              }
+              p.popMode();
+              p.nextToken();
+              return a.new CompositeNode("template",token,parts.toArray(new Arith.SimpleNode[0]));
+          }, "#" )
+          .Null(-1, a.NullError, "}" );
+        String[][] cases = {
+            { "#a ${x+1} b# * 2", "(* (template \"a \" (+ x 1) \" b\") 2)" },
+            { "#${ #(${y})# }#", "(template (template \"(\" y \")\"))" },
+            { "f(#x = 1;#)", "(call f (template \"x = 1;\"))" },
+        };
+        for (String[] c : cases) {
+            String sexpr = a.parser.parse(CharBuffer.wrap(c[0].toCharArray())).toString();
+            if (!sexpr.equals(c[1])) {
+                throw new AssertionError(sexpr+" != "+c[1]);
+            }
+            System.out.println(c[0]+" -> "+sexpr);
+        }
+    }
+
     @Test
     public void testArrays() {
         t_parse("x[1]", "(get x 1)");
@@ -148,6 +337,999 @@ public class Tests {
                 "(= c (get pal (* i 8)))");
     }
 
+    void t_value(String s, String expected) {
+        Tokenizer lexer = new Tokenizer().reset(CharBuffer.wrap(s.toCharArray()));
+        Token t = lexer.next();
+        String value = t.value().toString();
+        if (!value.equals(expected)) {
+            throw new AssertionError(value+" != "+expected);
+        }
+        if (t.text != null || !t.text().equals(s) || t.text() != t.text()) {
+            throw new AssertionError("text of "+s+" is "+t.text+", "+t.text());
+        }
+        System.out.println(s+" -> "+value);
+    }
+
+    @Test
+    public void testStrings() {
+        t_value("\"x\"", "x");
+        t_value("'a b c'", "a b c");
+        t_value("\"a\\tb\"", "a\tb");
+        t_value("`\\u0041\\\\\\``", "A\\`");
+        t_value("\"\\uXYZ\"", "uXYZ");
+    }
+
+    @Test
+    public void testSymbols() {
+        Symbols symbols = new Symbols();
+        Tokenizer a = new Tokenizer(), b = new Tokenizer();
+        a.symbols(symbols);
+        b.symbols(symbols);
+        Token x = a.reset(CharBuffer.wrap("x".toCharArray())).next();
+        Token y = a.reset(CharBuffer.wrap("y".toCharArray())).next();
+        Token z = b.reset(CharBuffer.wrap("x".toCharArray())).next();
+        if (x.info != 0 || y.info != 1 || z.info != 0 || x.text != z.text) {
+            throw new AssertionError("x="+x.info+" y="+y.info+" z="+z.info);
+        }
+        for (int i = 0; i < 1000; i++) symbols.intern("v"+i);
+        if (symbols.size() != 1002 || symbols.intern("v999") != 1001 || symbols.name(0) != x.text) {
+            throw new AssertionError("size="+symbols.size());
+        }
+
+        // keywords are not interned
+        Arith k = new Arith();
+        k.parser = newParser(symbols);
+        k.makeShellParser();
+        k.parser.spec().Left(23, k.LeftBinaryOp, "mod");
+        Arith.SimpleNode tree = k.parser.parse(CharBuffer.wrap("x mod z".toCharArray()));
+        if (!tree.toString().equals("(mod x z)") || symbols.size() != 1003 || !symbols.name(1002).equals("z")) {
+            throw new AssertionError(tree+" size="+symbols.size());
+        }
+    }
+
+    Arith.SimpleNode tree(String s) {
+        return arith.parser.parse(CharBuffer.wrap(s.toCharArray()));
+    }
+
+    @Test
+    public void testColumnar() {
+        int rows = 3000;
+        double[] x = new double[rows];
+        long[] y = new long[rows];
+        for (int i = 0; i < rows; i++) { x[i] = i * 0.5; y[i] = i % 7; }
+        String[] exprs = {
+            "x * 2 + y", "min(255, x*2) - -y", "y > 3 && x / y > 100 ? x : -1",
+            "!(y || 0) + (y << 2 | 1)", "x > 1e9 && 1/0 > 0",
+            "x % 3 + (y <= 2) - (x >= y) * 2 + (y == 4) + (y != 5) < x + ((y & 3) ^ (y >> 1)) + ~y",
+        };
+        for (String e : exprs) {
+            double[] r = new Columnar(tree(e)).bind("x",x).bind("y",y).eval(rows);
+            for (int i = 0; i < rows; i++) {
+                double xi = x[i], yi = y[i], v;
+                switch (e) {
+                    case "x * 2 + y": v = xi*2 + yi; break;
+                    case "min(255, x*2) - -y": v = Math.min(255,xi*2) + yi; break;
+                    case "y > 3 && x / y > 100 ? x : -1": v = yi > 3 && xi/yi > 100 ? xi : -1; break;
+                    case "!(y || 0) + (y << 2 | 1)": v = (yi == 0 ? 1 : 0) + (((long)yi << 2) | 1); break;
+                    case "x % 3 + (y <= 2) - (x >= y) * 2 + (y == 4) + (y != 5) < x + ((y & 3) ^ (y >> 1)) + ~y":
+                        v = (xi % 3 + (yi <= 2 ? 1 : 0) - (xi >= yi ? 1 : 0) * 2 + (yi == 4 ? 1 : 0) + (yi != 5 ? 1 : 0)
+                             < xi + (((long)yi & 3) ^ ((long)yi >> 1)) + ~(long)yi) ? 1 : 0;
+                        break;
+                    default: v = 0;
+                }
+                if (r[i] != v) {
+                    throw new AssertionError(e+" at row "+i+": "+r[i]+" != "+v);
+                }
+            }
+            System.out.println(e+" -> ["+r[0]+", "+r[1]+", ... "+r[rows-1]+"]");
+        }
+        for (String e : new String[] { "x[1](y)", "x[y](x, 2)" }) {
+            try {
+                new Columnar(tree(e));
+                throw new AssertionError(e);
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testPlan() {
+        String[] exprs = { "a*b + c", "(b*a + c) * 2", "sqrt(a*b + c) - a*b", "a > b ? a*b : c", "min(a*b, 2) + -c", "-c * 2" };
+        List<Arith.SimpleNode> trees = new ArrayList<>();
+        for (String e : exprs) trees.add(tree(e));
+        Plan plan = new Plan(trees);
+        // loads of a, b, c; the constant 2; a*b, a*b+c, *2, sqrt, -, >, ?:, min, -c, +, -c*2
+        if (plan.size() != 15) throw new AssertionError(plan.size()+" instructions");
+
+        int rows = 1000;
+        double[][] columns = new double[3][rows];
+        Random r = new Random(7);
+        for (double[] col : columns) for (int i = 0; i < rows; i++) col[i] = r.nextInt(100) / 10.0;
+        double[][] out = plan.eval(columns, rows);
+        for (int j = 0; j < exprs.length; j++) {
+            Columnar one = new Columnar(trees.get(j));
+            for (String n : new String[] { "a", "b", "c" }) one.bind(n, columns[plan.input(n)]);
+            double[] expected = one.eval(rows);
+            for (int i = 0; i < rows; i += 37) {
+                double[] record = { columns[0][i], columns[1][i], columns[2][i] };
+                if (Double.compare(out[j][i], expected[i]) != 0 || Double.compare(plan.eval(record)[j], expected[i]) != 0) {
+                    throw new AssertionError(exprs[j]+" at row "+i+": "+out[j][i]+" != "+expected[i]);
+                }
+            }
+            System.out.println(exprs[j]+" -> ["+out[j][0]+", ... "+out[j][rows-1]+"]");
+        }
+        if (plan.registers >= plan.size()) throw new AssertionError(plan.registers+" registers");
+        try {
+            new Plan(List.of(tree("a[1](b)")));
+            throw new AssertionError("called an index");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testSharing() throws InterruptedException {
+        Nodes nodes = new Nodes();
+        Arith a = new Arith(nodes), b = new Arith(nodes);
+        Arith.CompositeNode x = (Arith.CompositeNode)a.parser.parse(CharBuffer.wrap("x*y + x*y".toCharArray()));
+        Arith.CompositeNode y = (Arith.CompositeNode)b.parser.parse(CharBuffer.wrap("z = x*y".toCharArray()));
+        if (x.children[0] != x.children[1] || x.children[0] != y.children[1]) {
+            throw new AssertionError(x+" and "+y+" do not share x*y");
+        }
+        if (b.parser.parse(CharBuffer.wrap("x*y + x*y".toCharArray())) != x) {
+            throw new AssertionError(x+" is not shared");
+        }
+        if (nodes.size() != 6) { // x y (* x y) (+ ...) z (= ...)
+            throw new AssertionError(nodes.size()+" nodes");
+        }
+
+        // a dropped tree leaves the table in one collection, not one per level
+        Nodes deep = new Nodes();
+        Arith c = new Arith(deep);
+        StringBuilder chain = new StringBuilder("x0");
+        for (int i = 1; i < 500; i++) chain.append(" - x").append(i);
+        c.parser.parse(CharBuffer.wrap(chain.toString().toCharArray()));
+        if (deep.size() < 999) throw new AssertionError(deep.size()+" nodes");
+        c = null;
+        System.gc();
+        for (int i = 0; i < 50 && deep.size() > 0; i++) Thread.sleep(10);
+        if (deep.size() != 0) throw new AssertionError(deep.size()+" nodes left");
+    }
+
+    @Test
+    public void testTokenTable() {
+        String[] exprs = { "x = y(2)*3 + y(4)*5", "print(\"a\\tb\")", "0x1F + 2.5f * 1_000L", "x[1]--" };
+        for (String e : exprs) {
+            TokenTable tokens = arith.parser.lex(CharBuffer.wrap(e.toCharArray()));
+            String expected = parse(e);
+            for (int i = 0; i < 2; i++) {
+                tokens.position(0);
+                String sexpr = arith.parser.parse(tokens).toString();
+                if (!sexpr.equals(expected)) {
+                    throw new AssertionError(sexpr+" != "+expected);
+                }
+            }
+            System.out.println(e+" -> "+tokens.size()+" tokens -> "+expected);
+        }
+        TokenTable tokens = arith.parser.lex(CharBuffer.wrap("f(\"a\\tb\")".toCharArray()));
+        Token s = tokens.token(2);
+        if (tokens.size() != 4 || tokens.start(2) != 2 || tokens.length(2) != 6 || !s.value().toString().equals("a\tb")
+                || s.text != null || !s.text().equals("\"a\\tb\"")) {
+            throw new AssertionError(tokens.size()+" tokens, "+s.text());
+        }
+    }
+
+    @Test
+    public void testLongLists() {
+        int n = 100_000;
+        StringBuilder list = new StringBuilder("x0"), call = new StringBuilder("f(x0");
+        for (int i = 1; i < n; i++) {
+            list.append(",x").append(i);
+            call.append(", x").append(i);
+        }
+        Arith.CompositeNode l = (Arith.CompositeNode)tree(list.toString());
+        Arith.CompositeNode c = (Arith.CompositeNode)tree(call.append(')').toString());
+        if (l.children.length != n || c.children.length != n+1 || !c.children[n].val.equals("x"+(n-1))) {
+            throw new AssertionError(l.children.length+" and "+c.children.length+" children");
+        }
+        t_parse("(a,b),c", "(, a b c)");
+        t_parse("f(a, (b, c), g(d, e))", "(call f a (, b c) (call g d e))");
+    }
+
+    @Test
+    public void testPrinter() {
+        StringBuilder s = new StringBuilder();
+        new Printer(s,true).print(tree("x = f(a, -b) * 2"));
+        String expected = "(=\n  x\n  (*\n    (call\n      f\n      a\n      (-\n        b))\n    2))";
+        if (!s.toString().equals(expected)) {
+            throw new AssertionError(s+" != "+expected);
+        }
+        int n = 100_000;
+        Token minus = new Tokenizer().reset(CharBuffer.wrap("-".toCharArray())).next();
+        Arith.SimpleNode t = tree("x");
+        for (int i = 0; i < n; i++) t = arith.new CompositeNode("-",minus,t);
+        String sexpr = Printer.compact(t);
+        if (sexpr.length() != 4*n+1 || !sexpr.startsWith("(- (- ") || sexpr.indexOf(" x)))") != 3*n-1) {
+            throw new AssertionError(sexpr.length()+" chars");
+        }
+    }
+
+    @Test
+    public void testService() throws Exception {
+        InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(),0);
+        try (Service<Arith.SimpleNode> service = new Service<>(loopback, () -> new Arith().parser, Object::toString, 2)) {
+            new Thread(service).start();
+            String[] requests = { "1+2*3", "x = (y", "f(a,b)" };
+            String[] expected = { "T(+ 1 (* 2 3))", "Eexpected ), got Token(EOF,0,null)", "T(call f a b)" };
+            try (SocketChannel client = SocketChannel.open(service.address())) {
+                for (int round = 0; round < 100; round++) {
+                    ByteBuffer out = ByteBuffer.allocate(256);
+                    for (String r : requests) {
+                        byte[] b = r.getBytes(StandardCharsets.UTF_8);
+                        out.putInt(b.length).put(b);
+                    }
+                    out.flip();
+                    while (out.hasRemaining()) client.write(out);
+                    for (String e : expected) {
+                        ByteBuffer n = ByteBuffer.allocate(4);
+                        while (n.hasRemaining()) client.read(n);
+                        ByteBuffer b = ByteBuffer.allocate(n.getInt(0));
+                        while (b.hasRemaining()) client.read(b);
+                        String reply = new String(b.array(),StandardCharsets.UTF_8);
+                        if (!reply.equals(e)) {
+                            throw new AssertionError(reply+" != "+e);
+                        }
+                    }
+                }
+                // a request larger than the buffers, then small ones again
+                String big = "1" + " + 1".repeat(50_000);
+                for (String r : new String[] { big, requests[0] }) {
+                    byte[] b = r.getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer out = ByteBuffer.allocate(4+b.length).putInt(b.length).put(b).flip();
+                    while (out.hasRemaining()) client.write(out);
+                    ByteBuffer n = ByteBuffer.allocate(4);
+                    while (n.hasRemaining()) client.read(n);
+                    ByteBuffer reply = ByteBuffer.allocate(n.getInt(0));
+                    while (reply.hasRemaining()) client.read(reply);
+                    if (reply.get(0) != 'T' || r != big && !new String(reply.array(),StandardCharsets.UTF_8).equals(expected[0])) {
+                        throw new AssertionError(new String(reply.array(),0,Math.min(reply.limit(),40),StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+        // a request over the depth limit, or that overflows the stack without
+        // one, gets an error response, and the next request is still served
+        String deep = "(".repeat(20_000) + "1" + ")".repeat(20_000);
+        try (Service<Arith.SimpleNode> limited = new Service<>(loopback, () -> new Arith().parser, Object::toString, 1);
+             Service<Arith.SimpleNode> unlimited = new Service<>(loopback, () -> new Arith().parser, Object::toString, 1, null)) {
+            new Thread(limited).start();
+            new Thread(unlimited).start();
+            String[][] expected = {
+                { "Eparse exceeded its DEPTH limit at offset "+Service.DEPTH, "T(+ 1 (* 2 3))" },
+                { "Enested too deeply", "T(+ 1 (* 2 3))" },
+            };
+            Service<?>[] services = { limited, unlimited };
+            for (int i = 0; i < services.length; i++) {
+                try (SocketChannel client = SocketChannel.open(services[i].address())) {
+                    String[] replies = { request(client,deep), request(client,"1+2*3") };
+                    if (!Arrays.equals(replies,expected[i])) {
+                        throw new AssertionError(Arrays.toString(replies));
+                    }
+                }
+            }
+        }
+        ByteBuffer grown = ByteBuffer.allocate(1 << 20).put("left".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer trimmed = Service.trim(grown);
+        if (trimmed.capacity() != Service.BUFFER || trimmed.position() != 4 || trimmed.get(0) != 'l') {
+            throw new AssertionError(trimmed);
+        }
+    }
+
+    /** Send a Service request and read its response. */
+    static String request(SocketChannel client, String request) throws IOException {
+        byte[] b = request.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(4+b.length).putInt(b.length).put(b).flip();
+        while (out.hasRemaining()) client.write(out);
+        ByteBuffer n = ByteBuffer.allocate(4);
+        while (n.hasRemaining()) client.read(n);
+        ByteBuffer reply = ByteBuffer.allocate(n.getInt(0));
+        while (reply.hasRemaining()) client.read(reply);
+        return new String(reply.array(),StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testGrammarProcessor() throws Exception {
+        Path dir = Files.createTempDirectory("grammar");
+        Path calc = dir.resolve("Calc.java");
+        Files.writeString(calc, String.join("\n",
+            "package calc;",
+            "import java.nio.CharBuffer;",
+            "import tdop.TDOP;",
+            "import tdop.Parser.ParseError;",
+            "import static tdop.TDOP.*;",
+            "public class Calc {",
+            "    static class N implements Node {",
+            "        N(String s) { text = s; }",
+            "        final String text;",
+            "        public String toString() { return text; }",
+            "    }",
+            "    final String open = \"(\";",
+            "    @Nud(bp = -1, value = { NAME, NUMBER })",
+            "    N leaf(TDOP.Parser<N> p, Token t, int bp) { return new N(t.text); }",
+            "    @Nud(bp = 0, value = \"(\")",
+            "    N group(TDOP.Parser<N> p, Token t, int bp) { N e = p.parseUntil(0); p.expect(\")\"); return e; }",
+            "    @Nud(bp = -1, value = { \")\", EOF }, rejecting = true)",
+            "    static N error(TDOP.Parser<N> p, Token t, int bp) { throw new ParseError(\"unexpected \"+type(t.type)); }",
+            "    @Led(bp = 10, value = { \"+\", \"-\" })",
+            "    N binary(TDOP.Parser<N> p, Token t, N left, int rbp) { return new N(\"(\"+t.type+\" \"+left+\" \"+p.parseUntil(rbp)+\")\"); }",
+            "    @Led(bp = 20, value = \"^\", right = true)",
+            "    N power(TDOP.Parser<N> p, Token t, N left, int rbp) { return binary(p,t,left,rbp); }",
+            "    public static String parse(String s) {",
+            "        TDOP.Parser<N> p = TDOP.newParser();",
+            "        CalcGrammar.install(p.spec(), new Calc());",
+            "        return p.parse(CharBuffer.wrap(s.toCharArray())).toString();",
+            "    }",
+            "    public static java.util.Set<String> expected(String s) {",
+            "        TDOP.Parser<N> p = TDOP.newParser();",
+            "        CalcGrammar.install(p.spec(), new Calc());",
+            "        return p.complete(CharBuffer.wrap(s.toCharArray())).expected;",
+            "    }",
+            "}"));
+        Path bad = dir.resolve("Bad.java");
+        Files.writeString(bad, String.join("\n",
+            "import tdop.TDOP;",
+            "import static tdop.TDOP.*;",
+            "class Bad {",
+            "    @Led(bp = 10, value = \"+\")",
+            "    Node plus(TDOP.Parser<Node> p, Token t, int bp) { return null; }",
+            "}"));
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager files = javac.getStandardFileManager(null,null,StandardCharsets.UTF_8)) {
+            List<String> options = List.of("-d", dir.toString(), "-s", dir.toString(), "-cp", System.getProperty("java.class.path"));
+            JavaCompiler.CompilationTask task = javac.getTask(null, files, null, options, null, files.getJavaFileObjects(calc));
+            task.setProcessors(List.of(new GrammarProcessor()));
+            if (!task.call()) throw new AssertionError("Calc didn't compile");
+
+            DiagnosticCollector<JavaFileObject> errors = new DiagnosticCollector<>();
+            task = javac.getTask(null, files, errors, options, null, files.getJavaFileObjects(bad));
+            task.setProcessors(List.of(new GrammarProcessor()));
+            if (task.call() || !errors.getDiagnostics().get(0).getMessage(null).equals("a led takes (Parser<N>, Token, N, int)")) {
+                throw new AssertionError(errors.getDiagnostics());
+            }
+        }
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { dir.toUri().toURL() }, Tests.class.getClassLoader())) {
+            Class<?> c = loader.loadClass("calc.Calc");
+            Method parse = c.getMethod("parse", String.class);
+            String tree = (String)parse.invoke(null, "a + (1 - b) ^ c ^ 2 - d");
+            if (!tree.equals("(- (+ a (^ (- 1 b) (^ c 2))) d)")) throw new AssertionError(tree);
+            try {
+                parse.invoke(null, "a + )");
+                throw new AssertionError("no ParseError");
+            }
+            catch (InvocationTargetException e) {
+                if (!(e.getCause() instanceof ParseError) || !e.getCause().getMessage().equals("unexpected )")) throw e;
+            }
+            // the Rejecting handler's tokens aren't offered
+            Object expected = c.getMethod("expected", String.class).invoke(null, "a +");
+            if (!expected.equals(Set.of(NAME, NUMBER, "("))) throw new AssertionError(expected);
+        }
+        try (Stream<Path> all = Files.walk(dir)) {
+            all.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testBulk() throws Exception {
+        Path dir = Files.createTempDirectory("bulk");
+        String[] sources = { "1+2*3", "f(a,b) + 1", "x = (y", "a ? b : c", "\"π\" + 1" };
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < sources.length; i++) {
+            files.add(Files.writeString(dir.resolve(i+".txt"),sources[i]));
+        }
+        for (boolean map : new boolean[] { false, true }) {
+            Bulk.Stats s = Bulk.run(files,2,map,2);
+            if (s.files != 5 || s.errors != 1 || s.bytes != 38 || s.chars != 37 || s.tokens != 25
+                || s.slowest.size() != 2 || s.peakHeap <= 0) {
+                throw new AssertionError(s.files+" "+s.errors+" "+s.bytes+" "+s.chars+" "+s.tokens+" "+s.peakHeap);
+            }
+        }
+        // only parse errors are counted; anything else fails the run
+        try {
+            Bulk.run(List.of(dir.resolve("missing.txt")),1,false,1);
+            throw new AssertionError("no error for a missing file");
+        }
+        catch (UncheckedIOException e) {}
+        for (Path f : files) Files.delete(f);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testCompletion() {
+        Completion<Arith.SimpleNode> c = arith.parser.complete(CharBuffer.wrap("a * (1 +".toCharArray()));
+        if (c.tree != null || !c.pending.get(0).type.equals("*") || !c.pending.get(1).type.equals("(")
+                || !c.pending.get(2).type.equals("+") || !c.operands.get(0).toString().equals("a")
+                || c.operands.get(1) != null || !c.operands.get(2).toString().equals("1")) {
+            throw new AssertionError(c.pending+" "+c.operands);
+        }
+        expect(c, true, NAME, NUMBER, "(", "-", "!");
+        expect(c, false, ")", "*", EOF);
+
+        c = arith.parser.complete(CharBuffer.wrap("(1+2".toCharArray()));
+        if (c.tree != null || !c.last.toString().equals("(+ 1 2)")) {
+            throw new AssertionError(c.last);
+        }
+        expect(c, true, ")", "*", "+", "&&", ",");
+        expect(c, false, NAME, EOF);
+
+        c = arith.parser.complete(CharBuffer.wrap("x = 1".toCharArray()));
+        if (!c.tree.toString().equals("(= x 1)") || !c.pending.isEmpty()) {
+            throw new AssertionError(c.tree);
+        }
+        expect(c, true, EOF, "+", "?");
+        expect(c, false, NAME, ")", "]");
+
+        c = arith.parser.complete(CharBuffer.wrap("f(".toCharArray()));
+        expect(c, true, ")", NAME, "(");
+        expect(c, false, ",", "]", EOF);
+        c = arith.parser.complete(CharBuffer.wrap("f(a".toCharArray()));
+        expect(c, true, ",", ")", "+", "[");
+        expect(c, false, "]", ":", EOF);
+
+        assertParseError("1 + )", "<Token ) null> can't be used in prefix position");
+        try {
+            arith.parser.complete(CharBuffer.wrap("1 + )".toCharArray()));
+            throw new AssertionError("no ParseError");
+        }
+        catch (ParseError e) {}
+    }
+
+    void expect(Completion<?> c, boolean in, String... types) {
+        for (String t : types) {
+            if (c.expected.contains(t) != in) {
+                throw new AssertionError(type(t)+(in ? " not in " : " in ")+c.expected);
+            }
+        }
+    }
+
+    @Test
+    public void testLazyGroups() throws InterruptedException {
+        Arith a = new Arith();
+        a.lazy = true;
+        String src = "(b + c) * f((d), \"(]\") + g[(e)] + (x = (y))";
+        TokenTable table = a.parser.lex(CharBuffer.wrap(src.toCharArray())).index();
+        if (table.match(0) != 4 || table.match(4) != 0 || table.match(1) != -1) {
+            throw new AssertionError(table.match(0)+" "+table.match(4));
+        }
+        Arith.SimpleNode tree = a.parser.parse(table);
+        Arith.CompositeNode sum = (Arith.CompositeNode)((Arith.CompositeNode)tree).children[0];
+        Arith.CompositeNode product = (Arith.CompositeNode)sum.children[0];
+        Arith.LazyNode first = (Arith.LazyNode)product.children[0];
+        if (first.tree != null) {
+            throw new AssertionError("parsed eagerly");
+        }
+        String expected = "(+ (+ (* (+ b c) (call f d \"(]\")) (get g e)) (= x y))";
+        if (!tree.toString().equals(expected) || !first.tree.toString().equals("(+ b c)")) {
+            throw new AssertionError(tree);
+        }
+        if (!parse(src).toString().equals(expected)) {
+            throw new AssertionError(parse(src));
+        }
+
+        // threads forcing one group share its tree
+        Arith.LazyNode group = (Arith.LazyNode)a.parser.parse(a.parser.lex(CharBuffer.wrap("((x) * (y + 1))".toCharArray())).index());
+        Arith.SimpleNode[] forced = new Arith.SimpleNode[4];
+        Thread[] threads = new Thread[forced.length];
+        for (int i = 0; i < threads.length; i++) {
+            int t = i;
+            threads[i] = new Thread(() -> forced[t] = group.force());
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+        for (Arith.SimpleNode f : forced) {
+            if (f != forced[0] || !f.toString().equals("(* x (+ y 1))")) throw new AssertionError(f);
+        }
+
+        // a handler that looks into a group forces it mid-parse
+        String indexed = "((a))[1] = (b)";
+        tree = a.parser.parse(a.parser.lex(CharBuffer.wrap(indexed.toCharArray())).index());
+        if (!tree.toString().equals("(= (get a 1) b)")) {
+            throw new AssertionError(tree);
+        }
+
+        for (String s : new String[] { "(1 + 2", "f(x]", "a) + (b", "[{}" }) {
+            try {
+                a.parser.lex(CharBuffer.wrap(s.toCharArray())).index();
+                throw new AssertionError(s+" should be unbalanced");
+            }
+            catch (ParseError e) {}
+        }
+
+        // without an index, groups are parsed eagerly
+        tree = a.parser.parse(CharBuffer.wrap("(1) + (2)".toCharArray()));
+        if (((Arith.CompositeNode)tree).children[0] instanceof Arith.LazyNode || !tree.toString().equals("(+ 1 2)")) {
+            throw new AssertionError(tree);
+        }
+
+        // the grammar grows after the tables are lexed
+        a.parser.spec().Left(17, a.LeftBinaryOp, "<>");
+        tree = a.parser.parse(a.parser.lex(CharBuffer.wrap("(a <> b) * 2".toCharArray())).index());
+        if (!tree.toString().equals("(* (<> a b) 2)")) {
+            throw new AssertionError(tree);
+        }
+
+        // a table is parsed, groups too, with the grammar it was lexed for
+        TokenTable old = a.parser.lex(CharBuffer.wrap("(x + y) + z".toCharArray())).index();
+        a.parser.spec().Left(23, (p,t,left,rbp) -> a.node("plus",t,left,p.parseUntil(rbp)), "+");
+        tree = a.parser.parse(old);
+        if (!tree.toString().equals("(+ (+ x y) z)")) {
+            throw new AssertionError(tree);
+        }
+        tree = a.parser.parse(a.parser.lex(CharBuffer.wrap("(x + y) + z".toCharArray())).index());
+        if (!tree.toString().equals("(plus (plus x y) z)")) {
+            throw new AssertionError(tree);
+        }
+    }
+
+    @Test
+    public void testHotSwap() throws Exception {
+        Arith a = new Arith();
+        Spec<Arith.SimpleNode> spec = a.parser.spec();
+        int v = spec.version();
+        // a change made during a parse applies to the next parse
+        spec.Null(29, (p,t,bp) -> {
+            p.spec().update(s -> s
+                .Left(17, a.LeftBinaryOp, "<>")
+                .Null(-1, (q,n,b) -> a.leaf("nil",n), "nil"));
+            return p.parseUntil(bp);
+        }, "#");
+        try {
+            a.parser.parse(CharBuffer.wrap("# x <> nil".toCharArray()));
+            throw new AssertionError("the running parse saw the new version");
+        }
+        catch (ParseError e) {}
+        if (spec.version() != v+2) {
+            throw new AssertionError(spec.version()+" "+v);
+        }
+        Arith.SimpleNode tree = a.parser.parse(CharBuffer.wrap("x <> nil".toCharArray()));
+        if (!tree.toString().equals("(<> x nil)") || !((Arith.CompositeNode)tree).children[1].type.equals("nil")) {
+            throw new AssertionError(tree);
+        }
+
+        // parses racing a writer see one version or the other, never a mix
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                spec.Left(i % 2 == 0 ? 26 : 23, a.LeftBinaryOp, "+");
+            }
+        });
+        writer.start();
+        CharBuffer src = CharBuffer.wrap("1+2*3".toCharArray());
+        while (writer.isAlive()) {
+            String s = a.parser.parse(src.rewind()).toString();
+            if (!s.equals("(+ 1 (* 2 3))") && !s.equals("(* (+ 1 2) 3)")) {
+                throw new AssertionError(s);
+            }
+        }
+        writer.join();
+
+        // changes one at a time are frozen once, by the parse that needs them
+        Arith b = new Arith();
+        int w = b.parser.spec().version();
+        for (int i = 0; i < 5000; i++) {
+            String name = "";
+            for (int k = i; ; k /= 26) {
+                name = (char)('a' + k % 26) + name;
+                if (k < 26) break;
+            }
+            b.parser.spec().Left(23, b.LeftBinaryOp, "op"+name);
+        }
+        tree = b.parser.parse(CharBuffer.wrap("x ophkh y opa z".toCharArray()));
+        if (!tree.toString().equals("(opa (ophkh x y) z)") || b.parser.spec().version() != w+5000) {
+            throw new AssertionError(tree+" "+b.parser.spec().version());
+        }
+    }
+
+    @Test
+    public void testRewriter() {
+        Rewriter r = Rewriter.simplifier(arith);
+        String[][] cases = {
+            { "1 + 2 * 3", "7" },
+            { "x * 1 + 0", "x" },
+            { "(y - 0) * (4 / 2)", "(+ y y)" },
+            { "!!(a < b)", "(!= (< a b) 0)" },
+            { "f(x ** 2, 1 / 0, 0x10 >> 2)", "(call f (* x x) (/ 1 0) 4)" },
+            { "-(-(z)) + (2 - 2)", "z" },
+            { "(a + 1 * b) / 2", "(* (+ a b) 0.5)" },
+            { "2 * 3 * x", "(* 6 x)" },
+            { "x++ * 2", "(* (post++ x) 2)" },
+            { "(y = f(z)) * 2", "(* (= y (call f z)) 2)" },
+            { "g(a) ** 2", "(** (call g a) 2)" },
+            { "2 * (a + b)", "(* 2 (+ a b))" },
+        };
+        for (String[] c : cases) {
+            String s = r.rewrite(tree(c[0])).toString();
+            if (!s.equals(c[1])) {
+                throw new AssertionError(c[0]+" -> "+s+" != "+c[1]);
+            }
+        }
+
+        // nonlinear patterns, declining actions and specific before general
+        Rewriter s = new Rewriter(arith)
+            .rule("(+ ?x ?y)", "(+ ?y ?x)")
+            .rule("(- ?x ?x)", "0")
+            .rule("(+ ?x #n)", b -> b.get("n").val.equals("7") ? b.get("x") : null)
+            .rule("(+ ?x #n)", "?x");
+        String t = s.rewrite(tree("(a*b - a*b) * c + 7")).toString();
+        if (!t.equals("(* 0 c)")) {
+            throw new AssertionError(t);
+        }
+        try {
+            s.rewrite(tree("p + q"));
+            throw new AssertionError("a commuting rule should not terminate");
+        }
+        catch (IllegalStateException e) {}
+    }
+
+    @Test
+    public void testRecalc() {
+        Recalc r = new Recalc(arith,
+            "a = x + 1",
+            "b = a * 2",
+            "c = max(y, 1) - 1",
+            "d = b + c",
+            "a ^= c",
+            "e = a + d");
+        if (r.recalc() != 6 || r.get("a") != 1 || r.get("d") != 2 || r.get("e") != 3) {
+            throw new AssertionError(r.get("a")+" "+r.get("d")+" "+r.get("e"));
+        }
+        if (r.set("y",4).recalc() != 4 || r.get("c") != 3 || r.get("a") != 2 || r.get("e") != 7) {
+            throw new AssertionError(r.get("c")+" "+r.get("a")+" "+r.get("e"));
+        }
+        if (r.set("x",2).recalc() != 5 || r.get("b") != 6 || r.get("e") != 9) {
+            throw new AssertionError(r.get("b")+" "+r.get("e"));
+        }
+        if (r.set("x",2).recalc() != 0) {
+            throw new AssertionError("recomputed an unchanged input");
+        }
+        try {
+            new Recalc(arith, "f = x[1](y)");
+            throw new AssertionError("called an index");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+
+        // many independent chains, in parallel and in program order
+        List<String> program = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            program.add("s"+i+" = x * "+i);
+            program.add("t"+i+" = s"+i+" + y");
+            program.add("u"+i+" = t"+i+" ? t"+i+" : -1");
+        }
+        program.add("total = u0 + u100 + u199");
+        Recalc p = new Recalc(arith, program.toArray(new String[0]));
+        Recalc q = new Recalc(arith, program.toArray(new String[0]));
+        p.parallel = 1;
+        q.parallel = Integer.MAX_VALUE;
+        for (int round = 0; round < 20; round++) {
+            if (p.set("x",round).set("y",round % 3).recalc() != q.set("x",round).set("y",round % 3).recalc()) {
+                throw new AssertionError("different formulas ran");
+            }
+            for (String v : new String[] { "total", "u150", "t0", "s1" }) {
+                if (p.get(v) != q.get(v)) {
+                    throw new AssertionError(v+" "+p.get(v)+" != "+q.get(v));
+                }
+            }
+        }
+        if (p.get("total") != 1 + 19*100+1 + 19*199+1) {
+            throw new AssertionError(p.get("total"));
+        }
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        StringBuilder b = new StringBuilder("x = ");
+        for (int i = 0; i < 20_000; i++) b.append("f(a").append(i).append(", \"s\") * ").append(i % 7).append(" + ");
+        b.append("1");
+        String src = b.toString();
+        byte[] utf8 = src.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gz)) {
+            out.write(utf8);
+        }
+        String expected = parse(src);
+        for (byte[] in : new byte[][] { utf8, gz.toByteArray() }) {
+            try (Pipeline tokens = arith.parser.pipe(new ByteArrayInputStream(in))) {
+                String tree = arith.parser.parse(tokens).toString();
+                if (!tree.equals(expected)) {
+                    throw new AssertionError(tree.length()+" != "+expected.length());
+                }
+            }
+        }
+
+        // tokens keep their offsets in the input across chunks
+        try (Pipeline tokens = arith.parser.pipe(new ByteArrayInputStream(utf8))) {
+            int count = 0;
+            while (tokens.hasNext()) {
+                Token t = tokens.next();
+                String text = t.text() != null ? t.text() : t.type;
+                if (!src.startsWith(text,t.offset)) {
+                    throw new AssertionError(t+" at "+t.offset);
+                }
+                count++;
+            }
+            if (count != arith.parser.lex(CharBuffer.wrap(src.toCharArray())).size()) {
+                throw new AssertionError(count+" tokens");
+            }
+        }
+
+        // tokens are lexed as the input comes, not once it has all been read
+        CountDownLatch more = new CountDownLatch(1);
+        InputStream slow = new InputStream() {
+            byte[][] parts = { "a + b ".getBytes(StandardCharsets.UTF_8), "* c".getBytes(StandardCharsets.UTF_8) };
+            int part, at;
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b,0,1) < 0 ? -1 : b[0] & 0xff;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (at == parts[part].length) {
+                    if (part == parts.length-1) return -1;
+                    try {
+                        if (!more.await(10,TimeUnit.SECONDS)) throw new IOException("no tokens before the end of input");
+                    }
+                    catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    part++;
+                    at = 0;
+                }
+                int n = Math.min(len,parts[part].length-at);
+                System.arraycopy(parts[part],at,b,off,n);
+                at += n;
+                return n;
+            }
+        };
+        try (Pipeline tokens = arith.parser.pipe(slow)) {
+            List<String> seen = new ArrayList<>();
+            for (int i = 0; i < 3; i++) seen.add(tokens.next().type);
+            more.countDown();
+            while (tokens.hasNext()) seen.add(tokens.next().type);
+            if (!seen.equals(List.of(NAME,"+",NAME,"*",NAME))) {
+                throw new AssertionError(seen);
+            }
+        }
+
+        // a parse that fails early stops the producer when closed
+        try (Pipeline tokens = arith.parser.pipe(new ByteArrayInputStream(("1 + ) "+src).getBytes(StandardCharsets.UTF_8)))) {
+            arith.parser.parse(tokens);
+            throw new AssertionError("no ParseError");
+        }
+        catch (ParseError e) {}
+
+        try (Pipeline tokens = arith.parser.pipe(new ByteArrayInputStream(utf8))) {
+            tokens.next();
+            tokens.position(0);
+            throw new AssertionError("rewound a pipeline");
+        }
+        catch (UnsupportedOperationException e) {}
+    }
+
+    @Test
+    public void testDFA() {
+        Arith a = new Arith();
+        a.parser.spec().Null(-1, a.NullConstant, "DURATION");
+        DFA lexer = new DFA.Rules()
+            .literal("++", "--", "(", ")", "[", "]", "+", "!", "~", "-", "**", "*", "/", "%",
+                     "<<", ">>", "<", ">", "<=", ">=", "!=", "==", "&", "^", "|", "&&", "||",
+                     "?", ":", "=", "+=", "-=", "*=", "/=", "%=", "<<=", ">>=", "&=", "^=", "|=", ",")
+            .rule(NAME, "[A-Za-z_]\\w*")
+            .rule(NUMBER, "\\d+(\\.\\d+)?([eE][-+]?\\d+)?|0[xX][0-9a-fA-F]+")
+            .rule(STRING, "\"([^\"\\\\\\n]|\\\\.)*\"")
+            .rule("DURATION", "\\d+(ms|s)")
+            .skip("\\s+")
+            .skip("//[^\\n]*")
+            .compile(a.parser);
+
+        for (String s : new String[] { "1 + 2 * x", "a = b ? c : d", "f(a, 0x1F, \"s\\\"t\")",
+                                       "x <<= 2.5e3", "-~!y ** z", "a[i+1] >= b || c && d" }) {
+            String expected = a.parser.parse(CharBuffer.wrap(s.toCharArray())).toString();
+            String got = a.parser.parse(lexer.scan(CharBuffer.wrap(s.toCharArray()))).toString();
+            if (!got.equals(expected)) throw new AssertionError(s+": "+got+" != "+expected);
+            System.out.println(s+" -> "+got);
+        }
+        String d = a.parser.parse(lexer.scan(CharBuffer.wrap("10ms + 3s // then\n + 4".toCharArray()))).toString();
+        if (!d.equals("(+ (+ 10ms 3s) 4)")) throw new AssertionError(d);
+
+        // the textbook (a|b)*abb needs 4 states, plus the dead one
+        a.parser.spec().Null(-1, a.NullConstant, "ABB");
+        DFA abb = new DFA.Rules().rule("ABB", "(a|b)*abb").compile(a.parser);
+        if (abb.states() != 5) throw new AssertionError(abb.states()+" states");
+        TokenSource t = abb.scan(CharBuffer.wrap("abababbc".toCharArray()));
+        Token x = t.next(), y = t.next();
+        if (!x.type.equals("ABB") || x.text.length() != 7 || !y.type.equals(UNRECOGNIZED) || t.hasNext()) {
+            throw new AssertionError(x+" "+y);
+        }
+    }
+
+    @Test
+    public void testHistogram() {
+        // values below 2^SUB have a bucket each; above, a bucket spans 1/2^SUB of its value
+        for (long v : new long[] { 0, 1, 127, 128, 255, 256, 257, 1000, 123_456_789, Long.MAX_VALUE }) {
+            int i = Latency.Histogram.index(v);
+            long hi = Latency.Histogram.highest(i), lo = i == 0 ? 0 : Latency.Histogram.highest(i-1)+1;
+            if (v < lo || v > hi || v < 256 && lo != hi || (double)(hi-lo) > v / 128.0) {
+                throw new AssertionError(v+" in bucket "+i+" ["+lo+", "+hi+"]");
+            }
+        }
+        Latency.Histogram h = new Latency.Histogram();
+        for (long v = 1; v <= 10_000; v++) h.record(v);
+        h.record(-5); // counted as 0
+        for (double p : new double[] { 1, 50, 90, 99, 99.9 }) {
+            long exact = (long)Math.ceil(p / 100 * 10_001) - 1, got = h.percentile(p);
+            if (got < exact || got > exact + exact / 128) {
+                throw new AssertionError("p"+p+" = "+got+", not "+exact);
+            }
+        }
+        if (h.percentile(100) != 10_000 || h.max != 10_000 || h.total != 10_001) {
+            throw new AssertionError(h.percentile(100)+" "+h.max+" "+h.total);
+        }
+        Latency.Histogram sum = new Latency.Histogram();
+        sum.add(h);
+        sum.add(h);
+        if (sum.total != 20_002 || sum.percentile(50) != h.percentile(50)) {
+            throw new AssertionError(sum.total+" "+sum.percentile(50));
+        }
+    }
+
+    @Test
+    public void testLexers() {
+        Lexers lexers = new Lexers();
+        for (String s : new String[] { "a+=b[1]", "x<<=-~y ? f(2,3) : 0", Lexers.corpus(5000, new Random(3)) }) {
+            List<String> expected = Lexers.regex(s), got = lexers.dfa(s);
+            if (!got.equals(expected)) {
+                throw new AssertionError(s.length() < 100 ? s+": "+got+" != "+expected : got.size()+" != "+expected.size()+" tokens");
+            }
+        }
+        if (!Lexers.regex("x<<=-~y").equals(List.of(NAME+" x", "OP <<=-~", NAME+" y"))) {
+            throw new AssertionError(Lexers.regex("x<<=-~y"));
+        }
+    }
+
+    @Test
+    public void testFeeder() {
+        String input = "a = 1 +\n  2 * (b\n - c)\n\n"
+                     + "f(\"π; ) \\\" x\")\n"
+                     + "1 +\n"
+                     + "x[ ] \n"
+                     + "y ? z : w";
+        String[] expected = { "(= a (+ 1 (* 2 (- b c))))", "(call f \"π; ) \\\" x\")", "(? y z w)" };
+        for (int chunk : new int[] { 1, 3, 7, 1000 }) {
+            List<String> trees = new ArrayList<>();
+            List<String> errors = new ArrayList<>();
+            Feeder<Arith.SimpleNode> f = new Feeder<>(arith.parser, '\n', n -> trees.add(n.toString()), e -> errors.add(e.getMessage()));
+            byte[] b = input.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < b.length; i += chunk) {
+                f.feed(ByteBuffer.wrap(b, i, Math.min(chunk, b.length-i)));
+            }
+            f.finish();
+            if (errors.size() != 1 || trees.size() != 3
+                || !trees.get(0).equals(expected[0]) || !trees.get(1).equals(expected[1]) || !trees.get(2).equals(expected[2])) {
+                throw new AssertionError(chunk+": "+trees+" "+errors);
+            }
+            System.out.println(chunk+" -> "+trees+" "+errors);
+        }
+
+        List<String> trees = new ArrayList<>();
+        Feeder<Arith.SimpleNode> f = new Feeder<>(arith.parser, ';', n -> trees.add(n.toString()), null);
+        f.feed(CharBuffer.wrap("a; b +")).feed(CharBuffer.wrap(" c; ;"));
+        assertParseError("1 +", "Unexpected end");
+        try {
+            f.feed(CharBuffer.wrap("d +;"));
+            throw new AssertionError("d + should fail");
+        }
+        catch (ParseError e) {}
+        f.feed(CharBuffer.wrap("e")).finish();
+        if (!trees.toString().equals("[a, (+ b c), e]")) throw new AssertionError(trees.toString());
+
+        // continued lines are parsed once the expression can end, not at every line
+        trees.clear();
+        f = new Feeder<>(arith.parser, '\n', n -> trees.add(n.toString()), null);
+        f.feed(CharBuffer.wrap("x++\ny\n"));
+        StringBuilder chain = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) chain.append(i).append(" +\n");
+        f.feed(CharBuffer.wrap(chain.append("1 -\n(2)\n"))).finish();
+        if (trees.size() != 3 || !trees.subList(0,2).toString().equals("[(post++ x), y]")
+            || !trees.get(2).endsWith(" 19999) 1) 2)")) {
+            throw new AssertionError(trees.size()+" "+trees.subList(0,2));
+        }
+    }
+
+    @Test
+    public void testLimits() {
+        StringBuilder deep = new StringBuilder(), wide = new StringBuilder("f(0");
+        for (int i = 0; i < 5000; i++) deep.append('(');
+        deep.append('x');
+        for (int i = 0; i < 5000; i++) deep.append(')');
+        for (int i = 0; i < 5000; i++) wide.append(',').append(i);
+        wide.append(')');
+        String eager = "a + " + "-".repeat(100) + "1 /* " + "*".repeat(1000) + " */";
+
+        t_limit(new Limits().depth(100), deep, Limits.Exceeded.DEPTH);
+        t_limit(new Limits().tokens(1000), wide, Limits.Exceeded.TOKENS);
+        t_limit(new Limits().length(1000), eager, Limits.Exceeded.LENGTH);
+        t_limit(new Limits().deadline(0, TimeUnit.NANOSECONDS), wide, Limits.Exceeded.DEADLINE);
+        Limits cancelled = new Limits();
+        cancelled.cancel();
+        t_limit(cancelled, "1", Limits.Exceeded.CANCELLED);
+
+        // cancelled from a handler, as another thread would
+        Arith a = new Arith();
+        Limits l = new Limits();
+        a.parser.spec().Null(29, (p,t,bp) -> { l.cancel(); return p.parseUntil(bp); }, "#");
+        a.parser.limit(l);
+        try {
+            a.parser.parse(CharBuffer.wrap(("#"+wide).toCharArray()));
+            throw new AssertionError("not cancelled");
+        }
+        catch (LimitError e) {
+            if (e.exceeded != Limits.Exceeded.CANCELLED || e.tokens > 64) {
+                throw new AssertionError(e.exceeded+" after "+e.tokens);
+            }
+        }
+
+        // a handler that backtracks on ParseError doesn't swallow it
+        Arith b = new Arith();
+        b.parser.spec().Null(0, (p,token,bp) -> {
+            Mark m = p.mark();
+            try {
+                Arith.SimpleNode n = p.parseUntil(0);
+                p.expect(")");
+                return n;
+            }
+            catch (ParseError e) {
+                p.reset(m);
+                return b.new SimpleNode("swallowed",token);
+            }
+        }, "(" );
+        for (boolean memoize : new boolean[] { false, true }) {
+            b.parser.memoize(memoize);
+            b.parser.limit(new Limits().depth(100));
+            try {
+                b.parser.parse(CharBuffer.wrap(deep.toString().toCharArray()));
+                throw new AssertionError("depth limit swallowed");
+            }
+            catch (LimitError e) {
+                if (e.exceeded != Limits.Exceeded.DEPTH) throw new AssertionError(e.getMessage());
+            }
+            b.parser.limit(null);
+            String t = b.parser.parse(CharBuffer.wrap("(x) * (y)".toCharArray())).toString();
+            if (!t.equals("(* x y)")) throw new AssertionError(t);
+        }
+
+        // within budget
+        a.parser.limit(new Limits().depth(5001).tokens(20000).length(100000).deadline(1, TimeUnit.MINUTES));
+        a.parser.parse(CharBuffer.wrap(wide.toString().toCharArray()));
+    }
+
+    void t_limit(Limits limits, CharSequence s, Limits.Exceeded expected) {
+        Arith a = new Arith();
+        a.parser.limit(limits);
+        try {
+            a.parser.parse(CharBuffer.wrap(s.toString().toCharArray()));
+            throw new AssertionError(s.length()+" chars should exceed "+expected);
+        }
+        catch (LimitError e) {
+            if (e.exceeded != expected) {
+                throw new AssertionError(e.getMessage()+" instead of "+expected);
+            }
+            System.out.println(expected+" -> got expected: "+e.getMessage());
+        }
+    }
+
     @Test
     public void testErrors() {
         assertParseError("}");